@@ -19,4 +19,27 @@ public class Constants {
     public static final double DAA_MAX_ADJUSTMENT = 4.0;  // clamp upper bound
     public static final long MIN_DIFFICULTY_BITS = 1L;
     public static final long MAX_DIFFICULTY_BITS = 255L;
+
+    // Block timestamps: later than the median of the last blocks, and not too far in the future (as in Bitcoin)
+    public static final int MEDIAN_TIME_SPAN_BLOCKS = 11;
+    public static final long MAX_FUTURE_BLOCK_TIME_SEC = 2 * 60 * 60;
+
+    // ASERT: the target doubles (halves) for every half-life the chain falls behind (gets ahead of) schedule
+    public static final long ASERT_HALF_LIFE_SEC = 288 * TARGET_BLOCK_TIME_SEC;
+
+    // Replace-by-fee: at most this many transactions (conflicts and their descendants) can be evicted by one replacement
+    public static final int MAX_REPLACED_TRANSACTIONS = 100;
+
+    // Peer networking
+    public static final int MAX_MESSAGE_SIZE_BYTES = 32 * 1024 * 1024;
+    public static final int READ_CHUNK_BYTES = 16 * 1024; // initial payload buffer, grown as bytes arrive
+    public static final long MAX_PEER_WRITE_QUEUE_BYTES = 8 * 1024 * 1024;
+    public static final int VALIDATION_QUEUE_SIZE = 1024;
+    public static final int MAX_PEERS = 16 * 1024;
+    public static final long MAX_INBOUND_BUFFER_BYTES = 256 * 1024 * 1024; // shared by all peers, at least one message
+
+    // UTXO cache and on-disk store
+    public static final int UTXO_CACHE_SIZE = 1_000_000; // entries
+    public static final int UTXO_FLUSH_BATCH_SIZE = 100_000; // dirty entries
+    public static final long UTXO_STORE_INITIAL_SLOTS = 1L << 16;
 }
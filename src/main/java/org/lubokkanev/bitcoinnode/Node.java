@@ -3,20 +3,30 @@ package org.lubokkanev.bitcoinnode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.lubokkanev.bitcoinnode.block.Block;
+import org.lubokkanev.bitcoinnode.daa.Targets;
 import org.lubokkanev.bitcoinnode.mempool.Mempool;
 import org.lubokkanev.bitcoinnode.transaction.Xput;
 import org.lubokkanev.bitcoinnode.transaction.Transaction;
+import org.lubokkanev.bitcoinnode.utxo.MemoryUtxoStore;
+import org.lubokkanev.bitcoinnode.utxo.UtxoCache;
+import org.lubokkanev.bitcoinnode.utxo.UtxoStore;
 
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.Objects;
 import java.util.Set;
 
-public class Node {
+import static org.lubokkanev.bitcoinnode.Constants.MAX_FUTURE_BLOCK_TIME_SEC;
+
+public class Node implements Closeable {
     private static final Logger log = LoggerFactory.getLogger(Node.class);
 
     private final Mempool mempool = new Mempool();
-    private final Set<Xput> utxos = new HashSet<>();
+    private final UtxoCache utxos;
     private Block latestBlock;
 
     public Block getLatestBlock() {
@@ -24,6 +34,18 @@ public class Node {
     }
 
     public Node(Block latestBlock) throws Exception {
+        this(latestBlock, new MemoryUtxoStore());
+    }
+
+    // A store that has been written before has to be in sync with a block of the given chain
+    public Node(Block latestBlock, UtxoStore utxoStore) throws Exception {
+        utxos = new UtxoCache(utxoStore);
+        byte[] storedBlockHash = utxoStore.getBestBlockHash();
+        if (storedBlockHash != null) {
+            catchUp(latestBlock, storedBlockHash);
+            return;
+        }
+
         validateBlock(latestBlock);
         this.latestBlock = latestBlock;
 
@@ -43,17 +65,46 @@ public class Node {
 
            latestBlock = latestBlock.getPrevious();
         }
+        utxos.setBestBlock(this.latestBlock.getHash());
+        utxos.flushIfNeeded();
+    }
+
+    // Connects the blocks after the one the store is in sync with, those weren't flushed before the node stopped
+    private void catchUp(Block tip, byte[] storedBlockHash) throws Exception {
+        Deque<Block> unflushed = new ArrayDeque<>();
+        Block block = tip;
+        while (block != null && !Arrays.equals(block.getHash(), storedBlockHash)) {
+            unflushed.push(block);
+            block = block.getPrevious();
+        }
+        if (block == null) {
+            throw new Exception("The UTXO store is at block " + Arrays.toString(storedBlockHash)
+                  + ", which isn't in the given chain.");
+        }
+
+        latestBlock = block;
+        while (!unflushed.isEmpty()) {
+            Block next = unflushed.pop();
+            connectBlock(next);
+            latestBlock = next;
+            log.trace("Reconnected block {}", next.getNumber());
+        }
+        utxos.flushIfNeeded();
     }
 
     public void receiveBlock(Block newBlock) throws Exception {
         try {
             validateBlock(newBlock);
+            connectBlock(newBlock);
             latestBlock = newBlock;
             log.trace("Received valid block {}", newBlock.getNumber());
         } catch (Exception e) {
             throw new Exception("Invalid block " + newBlock.getNumber() + ", hash: "
                   + Arrays.toString(newBlock.getHash()), e);
         }
+
+        // Flushed only once the block is fully connected, a failed flush leaves the changes dirty for the next one
+        utxos.flushIfNeeded();
     }
 
     public void validateBlock(Block newBlock) throws Exception { // TODO (improvement): create specialized exceptions
@@ -65,23 +116,43 @@ public class Node {
             return; // nothing more to validate
         }
 
-        if (newBlock.getDifficulty() < latestBlock.getDifficulty()) { // TODO: fix to use the DAA difficulty
+        if (!Targets.isBelow(newBlock.getHash(), newBlock.getTarget())) {
             throw new Exception("Not sufficient difficulty.");
         }
 
+        // The difficulty adjustment reads the timestamps, so they have to stay close to the real time
+        if (newBlock.getTimestampSec() <= latestBlock.getMedianTimePast()) {
+            throw new Exception("Block time " + newBlock.getTimestampSec()
+                  + " isn't later than the median of the previous blocks.");
+        }
+        if (newBlock.getTimestampSec() > System.currentTimeMillis() / 1000L + MAX_FUTURE_BLOCK_TIME_SEC) {
+            throw new Exception("Block time " + newBlock.getTimestampSec() + " is too far in the future.");
+        }
+
+        Set<Xput> spentInBlock = new HashSet<>();
         for (Transaction tx : newBlock.getTransactions()) {
             for (Xput in : tx.getInputs()) {
                 if (!utxos.contains(in)) {
                     throw new Exception("Invalid transaction input: " + in + ".");
                 }
+                if (!spentInBlock.add(in)) {
+                    throw new Exception("Transaction input spent twice in the block: " + in + ".");
+                }
             }
         }
     }
 
+    private void connectBlock(Block newBlock) throws Exception {
+        utxos.connect(newBlock.getTransactions(), newBlock.getHash());
+        for (Transaction tx : newBlock.getTransactions()) {
+            mempool.removeConfirmedTransaction(tx);
+        }
+    }
+
     public Block mineBlock() throws Exception {
         Block newBlock = new Block(latestBlock);
         newBlock.addTransactions(mempool.getTransactions());
-        newBlock.findNonce(); // TODO: use the DAA to determine the difficulty
+        newBlock.findNonce();
         receiveBlock(newBlock);
         log.info("Successfully mined block {}, hash: {}", newBlock.getNumber(), Arrays.toString(newBlock.getHash()));
 
@@ -100,12 +171,19 @@ public class Node {
     }
 
     private void validateTransaction(Transaction transaction) throws Exception {
-        if (!utxos.containsAll(transaction.getInputs())) {
-            throw new Exception("Invalid inputs.");
+        for (Xput in : transaction.getInputs()) {
+            if (!utxos.contains(in)) {
+                throw new Exception("Invalid inputs.");
+            }
         }
     }
 
     public Set<Transaction> getUnconfirmedTransactions() {
         return mempool.getTransactions();
     }
+
+    @Override
+    public void close() throws IOException {
+        utxos.flush();
+    }
 }
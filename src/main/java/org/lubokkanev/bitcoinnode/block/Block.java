@@ -1,17 +1,21 @@
 package org.lubokkanev.bitcoinnode.block;
 
+import org.lubokkanev.bitcoinnode.daa.ChainHistory;
+import org.lubokkanev.bitcoinnode.daa.DifficultyAdjustmentAlgorithm;
+import org.lubokkanev.bitcoinnode.daa.DiscreteRetarget;
+import org.lubokkanev.bitcoinnode.daa.Targets;
 import org.lubokkanev.bitcoinnode.transaction.Transaction;
 import org.lubokkanev.bitcoinnode.transaction.Xput;
 import static org.lubokkanev.bitcoinnode.Constants.BASE_DIFFICULTY;
-import static org.lubokkanev.bitcoinnode.Constants.DIFFICULTY_ADJUSTMENT_INTERVAL;
-import static org.lubokkanev.bitcoinnode.Constants.TARGET_BLOCK_TIME_SEC;
-import static org.lubokkanev.bitcoinnode.Constants.DAA_MIN_ADJUSTMENT;
-import static org.lubokkanev.bitcoinnode.Constants.DAA_MAX_ADJUSTMENT;
-import static org.lubokkanev.bitcoinnode.Constants.MIN_DIFFICULTY_BITS;
-import static org.lubokkanev.bitcoinnode.Constants.MAX_DIFFICULTY_BITS;
+import static org.lubokkanev.bitcoinnode.Constants.MEDIAN_TIME_SPAN_BLOCKS;
+import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -22,16 +26,29 @@ public class Block {
     private byte[] blockHash;
     private long number;
     private long timestampSec;
+    private BigInteger target;
+    private boolean hasSuccessor; // the hash and the timestamps are part of the successors' hashes and targets
+    private final Block genesis;
+    private final DifficultyAdjustmentAlgorithm daa;
 
     public Block(Block previousBlock) {
+        previousBlock.hasSuccessor = true;
         this.previousBlock = previousBlock;
         this.number = previousBlock.getNumber() + 1;
+        this.genesis = previousBlock.genesis;
+        this.daa = previousBlock.daa;
     }
 
     public Block() {
+        this(new DiscreteRetarget());
+    }
+
+    public Block(DifficultyAdjustmentAlgorithm daa) {
         previousBlock = null;
         number = 1;
         timestampSec = System.currentTimeMillis() / 1000L;
+        genesis = this;
+        this.daa = daa;
     }
 
     public long getNumber() {
@@ -43,10 +60,24 @@ public class Block {
     }
 
     public void setTimestampSec(long timestampSec) {
+        changing();
         this.timestampSec = timestampSec;
     }
 
+    // Median of this block's and its ancestors' timestamps, a new block has to be later than its previous' median
+    public long getMedianTimePast() {
+        long[] timestamps = new long[MEDIAN_TIME_SPAN_BLOCKS];
+        int count = 0;
+        for (Block block = this; block != null && count < timestamps.length; block = block.previousBlock) {
+            timestamps[count++] = block.timestampSec;
+        }
+
+        Arrays.sort(timestamps, 0, count);
+        return timestamps[count / 2];
+    }
+
     public void addTransaction(Transaction transaction) throws Exception {
+        changing();
         try {
             validate(transaction);
             transactions.add(transaction);
@@ -78,6 +109,7 @@ public class Block {
     }
 
     public void addTransactions(Set<Transaction> transactions) {
+        changing();
         this.transactions.addAll(transactions);
     }
 
@@ -90,79 +122,51 @@ public class Block {
     }
 
     public void findNonce() {
-        do {
-            nonce++;
-            blockHash = hash();
-        } while (!checkDifficulty(getLeadingZeros()));
-
+        changing();
         if (timestampSec == 0) {
-            timestampSec = System.currentTimeMillis() / 1000L;
+            // The timestamp is part of the hash, so it's set before mining
+            long now = System.currentTimeMillis() / 1000L;
+            timestampSec = previousBlock == null ? now : Math.max(now, previousBlock.getMedianTimePast() + 1);
         }
-    }
 
-    private boolean checkDifficulty(long leadingZeros) {
-        return leadingZeros >= getDifficulty();
+        BigInteger target = getTarget();
+        do {
+            nonce++;
+            blockHash = hash();
+        } while (!Targets.isBelow(blockHash, target));
     }
 
-    private long getLeadingZeros() {
-        byte[] hashBytes = getHash();
-        long count = 0;
-
-        for (byte b : hashBytes) {
-            int unsigned = b & 0xFF;
-            if (unsigned == 0) {
-                count += 8;
-            } else {
-                // Count leading zero bits in this byte
-                count += Integer.numberOfLeadingZeros(unsigned) - 24; // 32-bit result -> 8-bit adjustment
-                break;
-            }
+    private void changing() {
+        if (hasSuccessor) {
+            throw new IllegalStateException("Block " + number + " can't change, another block builds on it.");
         }
 
-        return count;
+        blockHash = null;
     }
 
+    // Leading-zero bits view of the target, rounded down for targets that aren't a power of two
     public long getDifficulty() {
-        // Discrete retarget: every DIFFICULTY_ADJUSTMENT_INTERVAL blocks, adjust based on elapsed time
-        if (previousBlock == null) {
-            return BASE_DIFFICULTY;
-        }
-
-        long heightIndex = Math.max(0, number - 1);
-        boolean isRetargetPoint = (heightIndex % DIFFICULTY_ADJUSTMENT_INTERVAL) == 0;
-        if (!isRetargetPoint) {
-            return previousBlock.getDifficulty();
-        }
+        return Targets.toBits(getTarget());
+    }
 
-        // Walk back interval-1 blocks to find the first block in the window
-        Block windowStart = this;
-        for (int i = 0; i < DIFFICULTY_ADJUSTMENT_INTERVAL - 1; i++) {
-            if (windowStart.previousBlock == null) {
-                break;
+    // Depends only on the ancestors, which can't change anymore, so it's cached
+    public BigInteger getTarget() {
+        if (target == null) {
+            // Computed forward from the closest ancestor with a known target, instead of recursing down the chain
+            Deque<Block> pending = new ArrayDeque<>();
+            for (Block block = this; block != null && block.target == null; block = block.previousBlock) {
+                pending.push(block);
             }
-            windowStart = windowStart.previousBlock;
-        }
 
-        long windowEndTime = previousBlock.getTimestampSec();
-        long windowStartTime = windowStart.getTimestampSec();
-        if (windowStartTime == 0 || windowEndTime == 0) {
-            return previousBlock.getDifficulty();
+            while (!pending.isEmpty()) {
+                Block block = pending.pop();
+                block.target = block.previousBlock == null
+                      ? Targets.fromBits(BASE_DIFFICULTY)
+                      : block.daa.getNextTarget(new BlockHistory(block.previousBlock));
+            }
         }
 
-        long actualTimespan = Math.max(1, windowEndTime - windowStartTime);
-        long desiredTimespan = DIFFICULTY_ADJUSTMENT_INTERVAL * TARGET_BLOCK_TIME_SEC;
-
-        double factor = (double) actualTimespan / (double) desiredTimespan;
-        factor = Math.max(DAA_MIN_ADJUSTMENT, Math.min(DAA_MAX_ADJUSTMENT, factor));
-
-        // Map factor to bit change: deltaBits ≈ round(log2(factor))
-        double deltaBitsDouble = Math.log(factor) / Math.log(2.0);
-        long deltaBits = Math.round(deltaBitsDouble);
-
-        long newBits = previousBlock.getDifficulty() - deltaBits;
-        if (newBits < MIN_DIFFICULTY_BITS) newBits = MIN_DIFFICULTY_BITS;
-        if (newBits > MAX_DIFFICULTY_BITS) newBits = MAX_DIFFICULTY_BITS;
-        return newBits;
+        return target;
     }
 
     private byte[] hash() {
@@ -173,8 +177,9 @@ public class Block {
                 messageDigest.update(previousBlock.getHash());
             }
 
-            ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES * 2);
+            ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES * 3);
             buffer.putLong(number);
+            buffer.putLong(timestampSec);
             buffer.putLong(nonce);
             messageDigest.update(buffer.array());
 
@@ -200,6 +205,41 @@ public class Block {
     }
 
     public Set<Transaction> getTransactions() {
-        return transactions;
+        return Collections.unmodifiableSet(transactions); // changes go through addTransaction, which resets the hash
+    }
+
+    private static class BlockHistory implements ChainHistory {
+        private final Block tip;
+
+        private BlockHistory(Block tip) {
+            this.tip = tip;
+        }
+
+        @Override
+        public long getTipHeight() {
+            return tip.number;
+        }
+
+        @Override
+        public long getTimestampSec(long height) {
+            return getBlock(height).timestampSec;
+        }
+
+        @Override
+        public BigInteger getTarget(long height) {
+            return getBlock(height).getTarget();
+        }
+
+        private Block getBlock(long height) {
+            if (height == tip.genesis.number) {
+                return tip.genesis;
+            }
+
+            Block block = tip;
+            while (block.number > height) {
+                block = block.previousBlock;
+            }
+            return block;
+        }
     }
 }
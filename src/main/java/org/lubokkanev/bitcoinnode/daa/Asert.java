@@ -0,0 +1,53 @@
+package org.lubokkanev.bitcoinnode.daa;
+
+import java.math.BigInteger;
+
+import static org.lubokkanev.bitcoinnode.Constants.ASERT_HALF_LIFE_SEC;
+import static org.lubokkanev.bitcoinnode.Constants.TARGET_BLOCK_TIME_SEC;
+
+/**
+ * Absolutely scheduled exponentially rising targets (ASERT), retargeting every block. The target is the anchor
+ * (first block) target scaled by 2^((actual time - scheduled time) / half-life), in the fixed-point form used by
+ * aserti3-2d so that every node computes the same target.
+ */
+public class Asert implements DifficultyAdjustmentAlgorithm {
+    private static final long ANCHOR_HEIGHT = 1L;
+    private static final int RADIX_BITS = 16;
+
+    private final long halfLifeSec;
+    private final long blockTimeSec;
+
+    public Asert() {
+        this(ASERT_HALF_LIFE_SEC, TARGET_BLOCK_TIME_SEC);
+    }
+
+    public Asert(long halfLifeSec, long blockTimeSec) {
+        this.halfLifeSec = halfLifeSec;
+        this.blockTimeSec = blockTimeSec;
+    }
+
+    @Override
+    public BigInteger getNextTarget(ChainHistory chain) {
+        long tipHeight = chain.getTipHeight();
+        long timeDelta = chain.getTimestampSec(tipHeight) - chain.getTimestampSec(ANCHOR_HEIGHT);
+        long heightDelta = tipHeight - ANCHOR_HEIGHT;
+
+        long exponent = ((timeDelta - blockTimeSec * heightDelta) << RADIX_BITS) / halfLifeSec;
+        long shifts = exponent >> RADIX_BITS; // floor, also for negative exponents
+        long frac = exponent & 0xFFFFL;
+
+        // 2^frac ≈ 1 + 0.695502049*frac + 0.2262698*frac^2 + 0.0782318*frac^3, the sum fits in an unsigned long
+        long polynomial = 195766423245049L * frac + 971821376L * frac * frac + 5127L * frac * frac * frac + (1L << 47);
+        long factor = (1L << RADIX_BITS) + (polynomial >>> 48);
+
+        BigInteger target = chain.getTarget(ANCHOR_HEIGHT).multiply(BigInteger.valueOf(factor));
+        if (shifts < 0) {
+            target = target.shiftRight((int) Math.min(-shifts, 512));
+        } else {
+            target = target.shiftLeft((int) Math.min(shifts, 512));
+        }
+        target = target.shiftRight(RADIX_BITS);
+
+        return Targets.clamp(target);
+    }
+}
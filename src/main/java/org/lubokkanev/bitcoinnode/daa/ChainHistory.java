@@ -0,0 +1,11 @@
+package org.lubokkanev.bitcoinnode.daa;
+
+import java.math.BigInteger;
+
+public interface ChainHistory {
+    long getTipHeight();
+
+    long getTimestampSec(long height);
+
+    BigInteger getTarget(long height);
+}
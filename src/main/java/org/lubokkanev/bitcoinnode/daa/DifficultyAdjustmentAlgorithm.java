@@ -0,0 +1,8 @@
+package org.lubokkanev.bitcoinnode.daa;
+
+import java.math.BigInteger;
+
+public interface DifficultyAdjustmentAlgorithm {
+    // Target for the block after the tip of the chain; a valid block hash is below it
+    BigInteger getNextTarget(ChainHistory chain);
+}
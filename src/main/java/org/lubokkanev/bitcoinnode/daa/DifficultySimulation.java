@@ -0,0 +1,171 @@
+package org.lubokkanev.bitcoinnode.daa;
+
+import java.math.BigInteger;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import static org.lubokkanev.bitcoinnode.Constants.BASE_DIFFICULTY;
+import static org.lubokkanev.bitcoinnode.Constants.TARGET_BLOCK_TIME_SEC;
+
+/**
+ * Mines simulated blocks against a difficulty adjustment algorithm without hashing: each solve time is drawn from
+ * the exponential distribution given by the target and the current hashrate. Only a window of the chain is kept,
+ * so millions of blocks run in constant memory.
+ */
+public class DifficultySimulation {
+    private static final int HISTORY_SIZE = 4096;
+    private static final long GENESIS_TIMESTAMP_SEC = 1_000_000L;
+    private static final double TWO_TO_256 = Math.pow(2, 256);
+    private static final long DEFAULT_BLOCKS = 1_000_000L;
+
+    public interface HashrateModel {
+        double getHashesPerSec(long height);
+    }
+
+    // Hashrate that mines the genesis target in TARGET_BLOCK_TIME_SEC on average
+    public static double getBaseHashrate() {
+        return TWO_TO_256 / Targets.fromBits(BASE_DIFFICULTY).doubleValue() / TARGET_BLOCK_TIME_SEC;
+    }
+
+    public static Result run(DifficultyAdjustmentAlgorithm daa, HashrateModel hashrate, long blocks, long seed) {
+        SplittableRandom random = new SplittableRandom(seed);
+        SimulatedChain chain = new SimulatedChain(GENESIS_TIMESTAMP_SEC, Targets.fromBits(BASE_DIFFICULTY));
+
+        double clockSec = GENESIS_TIMESTAMP_SEC;
+        double solveTimeSum = 0;
+        double solveTimeSquaredSum = 0;
+        double scheduleErrorSquaredSum = 0;
+        long daaNanos = 0;
+
+        for (long i = 0; i < blocks; i++) {
+            long start = System.nanoTime();
+            BigInteger target = daa.getNextTarget(chain);
+            daaNanos += System.nanoTime() - start;
+
+            double expectedSolveTime = TWO_TO_256 / target.doubleValue() / hashrate.getHashesPerSec(chain.getTipHeight() + 1);
+            double solveTime = -Math.log(1.0 - random.nextDouble()) * expectedSolveTime;
+            clockSec += solveTime;
+            chain.append((long) clockSec, target);
+
+            solveTimeSum += solveTime;
+            solveTimeSquaredSum += solveTime * solveTime;
+            double scheduleError = expectedSolveTime / TARGET_BLOCK_TIME_SEC - 1;
+            scheduleErrorSquaredSum += scheduleError * scheduleError;
+        }
+
+        double mean = solveTimeSum / blocks;
+        double stdDev = Math.sqrt(Math.max(0, solveTimeSquaredSum / blocks - mean * mean));
+        return new Result(blocks, mean, stdDev, Math.sqrt(scheduleErrorSquaredSum / blocks), (double) daaNanos / blocks);
+    }
+
+    public static void main(String[] args) {
+        long blocks = args.length > 0 ? Long.parseLong(args[0]) : DEFAULT_BLOCKS;
+        double base = getBaseHashrate();
+
+        Map<String, HashrateModel> scenarios = new LinkedHashMap<>();
+        scenarios.put("constant", height -> base);
+        scenarios.put("switching x4 every 500 blocks", height -> (height / 500) % 2 == 0 ? base : 4 * base);
+        scenarios.put("doubling every 100k blocks", height -> base * Math.pow(2, height / 100_000.0));
+
+        Map<String, DifficultyAdjustmentAlgorithm> algorithms = new LinkedHashMap<>();
+        algorithms.put("discrete", new DiscreteRetarget());
+        algorithms.put("asert", new Asert());
+
+        System.out.printf("%-32s %-10s %14s %14s %14s %12s%n",
+              "scenario", "daa", "mean time (s)", "std dev (s)", "rms error", "ns / block");
+        for (Map.Entry<String, HashrateModel> scenario : scenarios.entrySet()) {
+            for (Map.Entry<String, DifficultyAdjustmentAlgorithm> algorithm : algorithms.entrySet()) {
+                Result result = run(algorithm.getValue(), scenario.getValue(), blocks, 42L);
+                System.out.printf("%-32s %-10s %14.3f %14.3f %14.4f %12.1f%n", scenario.getKey(), algorithm.getKey(),
+                      result.getMeanBlockTimeSec(), result.getBlockTimeStdDevSec(), result.getScheduleErrorRms(),
+                      result.getDaaNanosPerBlock());
+            }
+        }
+    }
+
+    public static class Result {
+        private final long blocks;
+        private final double meanBlockTimeSec;
+        private final double blockTimeStdDevSec;
+        private final double scheduleErrorRms;
+        private final double daaNanosPerBlock;
+
+        public Result(long blocks, double meanBlockTimeSec, double blockTimeStdDevSec, double scheduleErrorRms,
+                      double daaNanosPerBlock) {
+            this.blocks = blocks;
+            this.meanBlockTimeSec = meanBlockTimeSec;
+            this.blockTimeStdDevSec = blockTimeStdDevSec;
+            this.scheduleErrorRms = scheduleErrorRms;
+            this.daaNanosPerBlock = daaNanosPerBlock;
+        }
+
+        public long getBlocks() {
+            return blocks;
+        }
+
+        public double getMeanBlockTimeSec() {
+            return meanBlockTimeSec;
+        }
+
+        public double getBlockTimeStdDevSec() {
+            return blockTimeStdDevSec;
+        }
+
+        // Root mean square of the relative difference between the expected block time and the target block time
+        public double getScheduleErrorRms() {
+            return scheduleErrorRms;
+        }
+
+        public double getDaaNanosPerBlock() {
+            return daaNanosPerBlock;
+        }
+    }
+
+    private static class SimulatedChain implements ChainHistory {
+        private final long[] timestamps = new long[HISTORY_SIZE];
+        private final BigInteger[] targets = new BigInteger[HISTORY_SIZE];
+        private final long genesisTimestamp;
+        private final BigInteger genesisTarget;
+        private long tipHeight;
+
+        private SimulatedChain(long genesisTimestamp, BigInteger genesisTarget) {
+            this.genesisTimestamp = genesisTimestamp;
+            this.genesisTarget = genesisTarget;
+            append(genesisTimestamp, genesisTarget);
+        }
+
+        private void append(long timestampSec, BigInteger target) {
+            tipHeight++;
+            timestamps[index(tipHeight)] = timestampSec;
+            targets[index(tipHeight)] = target;
+        }
+
+        @Override
+        public long getTipHeight() {
+            return tipHeight;
+        }
+
+        @Override
+        public long getTimestampSec(long height) {
+            return height == 1 ? genesisTimestamp : timestamps[checkedIndex(height)];
+        }
+
+        @Override
+        public BigInteger getTarget(long height) {
+            return height == 1 ? genesisTarget : targets[checkedIndex(height)];
+        }
+
+        private int checkedIndex(long height) {
+            if (height < 1 || height > tipHeight || height <= tipHeight - HISTORY_SIZE) {
+                throw new IllegalArgumentException("Height " + height + " is outside the simulated history.");
+            }
+
+            return index(height);
+        }
+
+        private static int index(long height) {
+            return (int) (height % HISTORY_SIZE);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.lubokkanev.bitcoinnode.daa;
+
+import java.math.BigInteger;
+
+import static org.lubokkanev.bitcoinnode.Constants.DAA_MAX_ADJUSTMENT;
+import static org.lubokkanev.bitcoinnode.Constants.DAA_MIN_ADJUSTMENT;
+import static org.lubokkanev.bitcoinnode.Constants.DIFFICULTY_ADJUSTMENT_INTERVAL;
+import static org.lubokkanev.bitcoinnode.Constants.MAX_DIFFICULTY_BITS;
+import static org.lubokkanev.bitcoinnode.Constants.MIN_DIFFICULTY_BITS;
+import static org.lubokkanev.bitcoinnode.Constants.TARGET_BLOCK_TIME_SEC;
+
+/**
+ * Every DIFFICULTY_ADJUSTMENT_INTERVAL blocks, adjusts the difficulty in whole leading-zero bits based on how long
+ * the last interval took, so each step doubles or halves the work.
+ */
+public class DiscreteRetarget implements DifficultyAdjustmentAlgorithm {
+    @Override
+    public BigInteger getNextTarget(ChainHistory chain) {
+        long tipHeight = chain.getTipHeight();
+        BigInteger previousTarget = chain.getTarget(tipHeight);
+
+        boolean isRetargetPoint = (tipHeight % DIFFICULTY_ADJUSTMENT_INTERVAL) == 0;
+        if (!isRetargetPoint) {
+            return previousTarget;
+        }
+
+        // The window spans the interval - 1 blocks before the new one
+        long windowStartHeight = Math.max(1, tipHeight + 1 - (DIFFICULTY_ADJUSTMENT_INTERVAL - 1));
+        long windowEndTime = chain.getTimestampSec(tipHeight);
+        long windowStartTime = chain.getTimestampSec(windowStartHeight);
+        if (windowStartTime == 0 || windowEndTime == 0) {
+            return previousTarget;
+        }
+
+        long actualTimespan = Math.max(1, windowEndTime - windowStartTime);
+        long desiredTimespan = DIFFICULTY_ADJUSTMENT_INTERVAL * TARGET_BLOCK_TIME_SEC;
+
+        double factor = (double) actualTimespan / (double) desiredTimespan;
+        factor = Math.max(DAA_MIN_ADJUSTMENT, Math.min(DAA_MAX_ADJUSTMENT, factor));
+
+        // Map factor to bit change: deltaBits ≈ round(log2(factor))
+        double deltaBitsDouble = Math.log(factor) / Math.log(2.0);
+        long deltaBits = Math.round(deltaBitsDouble);
+
+        long newBits = Targets.toBits(previousTarget) - deltaBits;
+        if (newBits < MIN_DIFFICULTY_BITS) newBits = MIN_DIFFICULTY_BITS;
+        if (newBits > MAX_DIFFICULTY_BITS) newBits = MAX_DIFFICULTY_BITS;
+        return Targets.fromBits(newBits);
+    }
+}
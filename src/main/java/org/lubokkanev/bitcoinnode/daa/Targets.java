@@ -0,0 +1,32 @@
+package org.lubokkanev.bitcoinnode.daa;
+
+import java.math.BigInteger;
+
+import static org.lubokkanev.bitcoinnode.Constants.MAX_DIFFICULTY_BITS;
+import static org.lubokkanev.bitcoinnode.Constants.MIN_DIFFICULTY_BITS;
+
+public class Targets {
+    public static final BigInteger MAX_TARGET = fromBits(MIN_DIFFICULTY_BITS);
+    public static final BigInteger MIN_TARGET = fromBits(MAX_DIFFICULTY_BITS);
+
+    private Targets() {
+    }
+
+    // A hash is below 2^(256 - bits) exactly when it has at least that many leading zero bits
+    public static BigInteger fromBits(long bits) {
+        return BigInteger.ONE.shiftLeft((int) (256 - bits));
+    }
+
+    // Leading zero bits that every hash below the target has
+    public static long toBits(BigInteger target) {
+        return 256 - target.subtract(BigInteger.ONE).bitLength();
+    }
+
+    public static BigInteger clamp(BigInteger target) {
+        return target.max(MIN_TARGET).min(MAX_TARGET);
+    }
+
+    public static boolean isBelow(byte[] hash, BigInteger target) {
+        return new BigInteger(1, hash).compareTo(target) < 0;
+    }
+}
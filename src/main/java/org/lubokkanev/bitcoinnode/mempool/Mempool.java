@@ -1,21 +1,52 @@
 package org.lubokkanev.bitcoinnode.mempool;
 
 import org.lubokkanev.bitcoinnode.transaction.Transaction;
+import org.lubokkanev.bitcoinnode.transaction.Xput;
 
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
+import static org.lubokkanev.bitcoinnode.Constants.MAX_REPLACED_TRANSACTIONS;
+
 public class Mempool {
     private Set<Transaction> unconfirmedTransactions = new HashSet<>();
+    private Map<Xput, Transaction> spentInputs = new HashMap<>();
 
     public void addTransaction(Transaction transaction) throws MempoolAcceptanceException {
-        if (!unconfirmedTransactions.contains(transaction)) {
-            if (isValid(transaction)) {
-                unconfirmedTransactions.add(transaction);
-            } else {
-                throw new MempoolAcceptanceException("Invalid transaction.");
+        if (unconfirmedTransactions.contains(transaction)) {
+            return;
+        }
+
+        if (!isValid(transaction)) {
+            throw new MempoolAcceptanceException("Invalid transaction.");
+        }
+
+        if (transaction.getFeeSats() < 0) {
+            throw new MempoolAcceptanceException("Outputs exceed inputs by " + -transaction.getFeeSats() + " sats.");
+        }
+
+        Set<Transaction> conflicts = getConflicts(transaction);
+        if (!conflicts.isEmpty()) {
+            Set<Transaction> replaced = withDescendants(conflicts, MAX_REPLACED_TRANSACTIONS);
+            if (replaced.size() > MAX_REPLACED_TRANSACTIONS) {
+                throw new MempoolAcceptanceException("Replacement would evict more than " + MAX_REPLACED_TRANSACTIONS
+                      + " transactions.");
+            }
+            checkReplacement(transaction, replaced);
+
+            for (Transaction tx : replaced) {
+                removeTransaction(tx);
             }
         }
+
+        unconfirmedTransactions.add(transaction);
+        for (Xput input : transaction.getInputs()) {
+            spentInputs.put(input, transaction);
+        }
     }
 
     private boolean isValid(Transaction transaction) {
@@ -23,12 +54,79 @@ public class Mempool {
         return true;
     }
 
+    private Set<Transaction> getConflicts(Transaction transaction) {
+        Set<Transaction> conflicts = new HashSet<>();
+        for (Xput input : transaction.getInputs()) {
+            Transaction spender = spentInputs.get(input);
+            if (spender != null) {
+                conflicts.add(spender);
+            }
+        }
+
+        return conflicts;
+    }
+
+    // Stops walking once more than limit transactions are found
+    private Set<Transaction> withDescendants(Set<Transaction> transactions, int limit) {
+        Set<Transaction> result = new HashSet<>(transactions);
+        Deque<Transaction> toVisit = new ArrayDeque<>(transactions);
+        while (!toVisit.isEmpty() && result.size() <= limit) {
+            for (Xput output : toVisit.pop().getOutputs()) {
+                Transaction child = spentInputs.get(output);
+                if (child != null && result.add(child)) {
+                    toVisit.push(child);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private void checkReplacement(Transaction replacement, Set<Transaction> replaced) throws MempoolAcceptanceException {
+        long replacedFees = 0;
+        for (Transaction tx : replaced) {
+            replacedFees += tx.getFeeSats();
+
+            for (Xput output : tx.getOutputs()) {
+                if (replacement.getInputs().contains(output)) {
+                    throw new MempoolAcceptanceException("Replacement spends an output of the replaced " + tx.getHash() + ".");
+                }
+            }
+
+            // fee rates compared by cross-multiplication: fee1 / size1 > fee2 / size2
+            if (replacement.getFeeSats() * tx.getSize() <= tx.getFeeSats() * replacement.getSize()) {
+                throw new MempoolAcceptanceException("Replacement fee rate is not higher than the fee rate of " + tx.getHash() + ".");
+            }
+        }
+
+        if (replacement.getFeeSats() <= replacedFees) {
+            throw new MempoolAcceptanceException("Replacement fee " + replacement.getFeeSats()
+                  + " is not higher than the replaced fees " + replacedFees + ".");
+        }
+    }
+
+    public void removeTransaction(Transaction transaction) {
+        unconfirmedTransactions.remove(transaction);
+        for (Xput input : transaction.getInputs()) {
+            spentInputs.remove(input, transaction);
+        }
+    }
+
+    // Once a transaction is in a block, whatever else spends its inputs can never confirm
+    public void removeConfirmedTransaction(Transaction transaction) {
+        removeTransaction(transaction);
+        for (Transaction tx : withDescendants(getConflicts(transaction), Integer.MAX_VALUE)) {
+            removeTransaction(tx);
+        }
+    }
+
     public Set<Transaction> getTransactions() {
         return unconfirmedTransactions;
     }
 
     public static class MempoolAcceptanceException extends Exception {
-        public MempoolAcceptanceException(String invalid_transaction) {
+        public MempoolAcceptanceException(String message) {
+            super(message);
         }
     }
 }
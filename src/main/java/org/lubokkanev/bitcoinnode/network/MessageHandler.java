@@ -0,0 +1,5 @@
+package org.lubokkanev.bitcoinnode.network;
+
+public interface MessageHandler {
+    void handle(Peer peer, byte[] message) throws Exception;
+}
@@ -0,0 +1,36 @@
+package org.lubokkanev.bitcoinnode.network;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class Peer {
+    final SocketChannel channel;
+    final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    final AtomicLong queuedBytes = new AtomicLong();
+    // Idle peers only hold the length prefix, the payload buffer is allocated once a frame starts
+    final ByteBuffer header = ByteBuffer.allocate(Integer.BYTES);
+    ByteBuffer payload;
+    int payloadLength;
+    SelectionKey key;
+
+    private final SocketAddress remoteAddress;
+
+    Peer(SocketChannel channel, SocketAddress remoteAddress) {
+        this.channel = channel;
+        this.remoteAddress = remoteAddress;
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(remoteAddress);
+    }
+}
@@ -0,0 +1,384 @@
+package org.lubokkanev.bitcoinnode.network;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.lubokkanev.bitcoinnode.Constants.MAX_INBOUND_BUFFER_BYTES;
+import static org.lubokkanev.bitcoinnode.Constants.MAX_MESSAGE_SIZE_BYTES;
+import static org.lubokkanev.bitcoinnode.Constants.MAX_PEERS;
+import static org.lubokkanev.bitcoinnode.Constants.MAX_PEER_WRITE_QUEUE_BYTES;
+import static org.lubokkanev.bitcoinnode.Constants.READ_CHUNK_BYTES;
+import static org.lubokkanev.bitcoinnode.Constants.VALIDATION_QUEUE_SIZE;
+
+/**
+ * Non-blocking peer I/O: a single selector thread serves all the connections and hands complete messages
+ * off to a bounded validation pool. Messages are framed with a 4-byte length prefix.
+ * <p>
+ * A peer isn't read from while one of its messages is being handled, which keeps its messages in order
+ * and pushes back on peers that send faster than they can be validated. Payload buffers grow with the bytes
+ * that actually arrive, and peers that don't read their messages fast enough are disconnected.
+ * <p>
+ * The number of peers is capped, and all of them share one budget for inbound messages. A message's full length
+ * is taken from the budget when its header arrives and given back once it has been handled. A peer whose message
+ * doesn't fit isn't read from until enough is given back, so a started message can always be finished.
+ */
+public class PeerNetwork implements Closeable {
+    private static final Logger log = LoggerFactory.getLogger(PeerNetwork.class);
+    private static final long DISPATCH_RETRY_MS = 10L;
+    private static final int ACCEPT_BACKLOG = 1024;
+
+    private final MessageHandler handler;
+    private final ThreadPoolExecutor validationPool;
+    private final Selector selector;
+    private final Set<Peer> peers = ConcurrentHashMap.newKeySet();
+    private final Set<ServerSocketChannel> serverChannels = ConcurrentHashMap.newKeySet();
+    private final Queue<Runnable> selectorOperations = new ConcurrentLinkedQueue<>();
+    private final Deque<Runnable> undispatchedMessages = new ArrayDeque<>(); // selector thread only
+    private final Deque<Peer> waitingForBuffer = new ArrayDeque<>(); // selector thread only
+    private final int maxPeers;
+    private final long maxInboundBytes;
+    private long inboundBytes; // selector thread only
+    private final Thread ioThread;
+    private volatile boolean running = true;
+
+    public PeerNetwork(MessageHandler handler) throws IOException {
+        this(handler, Runtime.getRuntime().availableProcessors(), VALIDATION_QUEUE_SIZE);
+    }
+
+    public PeerNetwork(MessageHandler handler, int validationThreads, int validationQueueSize) throws IOException {
+        this(handler, validationThreads, validationQueueSize, MAX_PEERS, MAX_INBOUND_BUFFER_BYTES);
+    }
+
+    public PeerNetwork(MessageHandler handler, int validationThreads, int validationQueueSize, int maxPeers,
+          long maxInboundBytes) throws IOException {
+        if (maxInboundBytes < MAX_MESSAGE_SIZE_BYTES) {
+            throw new IllegalArgumentException("The inbound buffer of " + maxInboundBytes
+                  + " bytes can't hold a message of the maximum size.");
+        }
+
+        this.handler = handler;
+        this.maxPeers = maxPeers;
+        this.maxInboundBytes = maxInboundBytes;
+        this.validationPool = new ThreadPoolExecutor(validationThreads, validationThreads, 0L, TimeUnit.MILLISECONDS,
+              new ArrayBlockingQueue<>(validationQueueSize));
+        this.selector = Selector.open();
+
+        ioThread = new Thread(this::run, "peer-io");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    public InetSocketAddress listen(InetSocketAddress address) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.bind(address, ACCEPT_BACKLOG);
+        serverChannels.add(serverChannel);
+
+        onSelectorThread(() -> {
+            try {
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (IOException e) {
+                log.error("Failed to listen on {}.", address, e);
+            }
+        });
+
+        log.info("Listening for peers on {}", serverChannel.getLocalAddress());
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    public Peer connect(InetSocketAddress address) throws IOException {
+        if (peers.size() >= maxPeers) {
+            throw new IOException("Already connected to " + maxPeers + " peers.");
+        }
+
+        SocketChannel channel = SocketChannel.open(address);
+        return addPeer(channel);
+    }
+
+    public void send(Peer peer, byte[] message) {
+        if (message.length > MAX_MESSAGE_SIZE_BYTES) {
+            throw new IllegalArgumentException("Message of " + message.length + " bytes is too large.");
+        }
+
+        ByteBuffer frame = ByteBuffer.allocate(Integer.BYTES + message.length);
+        frame.putInt(message.length);
+        frame.put(message);
+        frame.flip();
+
+        // A single frame is always allowed, so that an idle peer can receive a message of any valid size
+        long queued = peer.queuedBytes.addAndGet(frame.remaining());
+        if (queued > frame.remaining() && queued > MAX_PEER_WRITE_QUEUE_BYTES) {
+            peer.queuedBytes.addAndGet(-frame.remaining());
+            onSelectorThread(() -> disconnect(peer, new IOException("Write queue of " + queued + " bytes is full.")));
+            return;
+        }
+
+        peer.writeQueue.add(frame);
+        onSelectorThread(() -> updateInterest(peer, SelectionKey.OP_WRITE, true));
+    }
+
+    public void broadcast(byte[] message) {
+        for (Peer peer : peers) {
+            send(peer, message);
+        }
+    }
+
+    public int getPeerCount() {
+        return peers.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Peer peer : peers) {
+            peer.channel.close();
+        }
+        peers.clear();
+        for (ServerSocketChannel serverChannel : serverChannels) {
+            serverChannel.close();
+        }
+        selector.close();
+        validationPool.shutdown();
+    }
+
+    private Peer addPeer(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        Peer peer = new Peer(channel, channel.getRemoteAddress());
+        peers.add(peer);
+
+        onSelectorThread(() -> {
+            try {
+                peer.key = channel.register(selector, SelectionKey.OP_READ, peer);
+                if (!peer.writeQueue.isEmpty()) {
+                    updateInterest(peer, SelectionKey.OP_WRITE, true);
+                }
+            } catch (IOException e) {
+                disconnect(peer, e);
+            }
+        });
+
+        log.debug("Connected to peer {}", peer);
+        return peer;
+    }
+
+    private void onSelectorThread(Runnable operation) {
+        selectorOperations.add(operation);
+        selector.wakeup();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                selector.select(undispatchedMessages.isEmpty() ? 0 : DISPATCH_RETRY_MS);
+
+                Runnable operation;
+                while ((operation = selectorOperations.poll()) != null) {
+                    operation.run();
+                }
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handleKey(key);
+                }
+
+                dispatchMessages();
+            } catch (IOException e) {
+                log.error("Peer I/O failure.", e);
+            }
+        }
+    }
+
+    private void handleKey(SelectionKey key) throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+
+        if (key.isAcceptable()) {
+            SocketChannel channel = ((ServerSocketChannel) key.channel()).accept();
+            if (channel != null && peers.size() >= maxPeers) {
+                log.debug("Refused peer {}, already connected to {} peers.", channel.getRemoteAddress(), maxPeers);
+                channel.close();
+            } else if (channel != null) {
+                addPeer(channel);
+            }
+            return;
+        }
+
+        Peer peer = (Peer) key.attachment();
+        try {
+            if (key.isReadable()) {
+                read(peer);
+            }
+            if (key.isValid() && key.isWritable()) {
+                write(peer);
+            }
+        } catch (IOException e) {
+            disconnect(peer, e);
+        }
+    }
+
+    private void read(Peer peer) throws IOException {
+        while (true) {
+            ByteBuffer buffer = peer.payload != null ? peer.payload : peer.header;
+            if (peer.channel.read(buffer) < 0) {
+                throw new EOFException("Peer closed the connection.");
+            }
+            if (buffer.hasRemaining()) {
+                return;
+            }
+
+            if (peer.payload == null) {
+                peer.header.flip();
+                int length = peer.header.getInt();
+                peer.header.clear();
+
+                if (length < 0 || length > MAX_MESSAGE_SIZE_BYTES) {
+                    throw new IOException("Invalid message length " + length + ".");
+                }
+                peer.payloadLength = length;
+                if (!startPayload(peer)) {
+                    updateInterest(peer, SelectionKey.OP_READ, false);
+                    waitingForBuffer.add(peer);
+                    return;
+                }
+            } else if (peer.payload.position() < peer.payloadLength) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.min(peer.payload.capacity() * 2, peer.payloadLength));
+                peer.payload.flip();
+                grown.put(peer.payload);
+                peer.payload = grown;
+            } else {
+                byte[] message = peer.payload.array();
+                peer.payload = null;
+
+                updateInterest(peer, SelectionKey.OP_READ, false);
+                undispatchedMessages.add(() -> handle(peer, message));
+                return;
+            }
+        }
+    }
+
+    // Takes the whole message from the inbound budget, so that it can be read to the end once started
+    private boolean startPayload(Peer peer) {
+        if (inboundBytes + peer.payloadLength > maxInboundBytes) {
+            return false;
+        }
+
+        inboundBytes += peer.payloadLength;
+        peer.payload = ByteBuffer.allocate(Math.min(peer.payloadLength, READ_CHUNK_BYTES));
+        return true;
+    }
+
+    private void releaseInbound(long bytes) {
+        inboundBytes -= bytes;
+
+        // Oldest first, so that a large message isn't starved by smaller ones
+        while (!waitingForBuffer.isEmpty()) {
+            Peer peer = waitingForBuffer.peek();
+            if (peers.contains(peer)) {
+                if (!startPayload(peer)) {
+                    return;
+                }
+                updateInterest(peer, SelectionKey.OP_READ, true);
+            }
+            waitingForBuffer.poll();
+        }
+    }
+
+    private void write(Peer peer) throws IOException {
+        ByteBuffer frame;
+        while ((frame = peer.writeQueue.peek()) != null) {
+            peer.channel.write(frame);
+            if (frame.hasRemaining()) {
+                return;
+            }
+            peer.writeQueue.poll();
+            peer.queuedBytes.addAndGet(-frame.capacity());
+        }
+
+        updateInterest(peer, SelectionKey.OP_WRITE, false);
+    }
+
+    private void dispatchMessages() {
+        while (!undispatchedMessages.isEmpty()) {
+            try {
+                validationPool.execute(undispatchedMessages.peek());
+            } catch (RejectedExecutionException e) {
+                return; // the pool is saturated, retry on the next selector round
+            }
+            undispatchedMessages.poll();
+        }
+    }
+
+    private void handle(Peer peer, byte[] message) {
+        try {
+            handler.handle(peer, message);
+        } catch (Exception e) {
+            log.debug("Failed to handle a message from peer {}.", peer, e);
+        } finally {
+            onSelectorThread(() -> {
+                releaseInbound(message.length);
+                updateInterest(peer, SelectionKey.OP_READ, true);
+            });
+        }
+    }
+
+    private void updateInterest(Peer peer, int operation, boolean enabled) {
+        if (peer.key == null || !peer.key.isValid()) {
+            return;
+        }
+
+        int interest = peer.key.interestOps();
+        peer.key.interestOps(enabled ? interest | operation : interest & ~operation);
+    }
+
+    private void disconnect(Peer peer, Exception reason) {
+        if (!peers.remove(peer)) {
+            return;
+        }
+        if (peer.key != null) {
+            peer.key.cancel();
+        }
+        if (peer.payload != null) {
+            peer.payload = null;
+            releaseInbound(peer.payloadLength); // a message being read, the handled ones give theirs back themselves
+        }
+
+        try {
+            peer.channel.close();
+        } catch (IOException e) {
+            log.debug("Failed to close the connection to peer {}.", peer, e);
+        }
+
+        log.debug("Disconnected from peer {}: {}", peer, reason.getMessage());
+    }
+}
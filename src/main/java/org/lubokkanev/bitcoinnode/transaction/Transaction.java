@@ -28,6 +28,22 @@ public class Transaction {
         return hash;
     }
 
+    public long getFeeSats() {
+        long fee = 0;
+        for (Xput input : inputs) {
+            fee += input.getAmountSats();
+        }
+        for (Xput output : outputs) {
+            fee -= output.getAmountSats();
+        }
+        return fee;
+    }
+
+    // Simplified size: there's no serialization yet, so count the xputs
+    public long getSize() {
+        return inputs.size() + outputs.size();
+    }
+
     public void validate() {
         if (inputs == null || inputs.size() == 0 || outputs == null || outputs.size() == 0) {
             throw new RuntimeException("Invalid transaction.");
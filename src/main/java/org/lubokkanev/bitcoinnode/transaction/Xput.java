@@ -13,6 +13,14 @@ public class Xput {
         this.amountSats = amountSats;
     }
 
+    public Address getAddress() {
+        return address;
+    }
+
+    public long getAmountSats() {
+        return amountSats;
+    }
+
     public boolean isCoinbase() {
         return COINBASE_ADDRESS.equals(address.getCashAddress()) || COINBASE_ADDRESS.equals(address.getPubKeyHash());
     }
@@ -0,0 +1,373 @@
+package org.lubokkanev.bitcoinnode.utxo;
+
+import org.lubokkanev.bitcoinnode.transaction.Xput;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+import static org.lubokkanev.bitcoinnode.Constants.UTXO_STORE_INITIAL_SLOTS;
+
+/**
+ * UTXO set on disk as an open-addressing hash table of fixed-size slots, keyed by the SHA-256 of each output, so
+ * a lookup or a batch only reads and writes the slots it touches. The table doubles once it's half full.
+ * <p>
+ * A batch is first written to a journal and synced, then applied to the table. If the node stops halfway through,
+ * the journal is replayed on the next open, which makes each batch atomic. The hash of the block the batch
+ * brings the set up to is part of it, so the table always says which block it matches.
+ */
+public class FileUtxoStore implements UtxoStore, Closeable {
+    private static final String TABLE_FILE = "utxo.dat";
+    private static final String JOURNAL_FILE = "utxo.journal";
+    private static final long JOURNAL_COMMIT = 0x5554584f4a524e4cL;
+
+    private static final int KEY_BYTES = 32;
+    private static final int BLOCK_HASH_BYTES = 32;
+    private static final int SLOT_BYTES = 1 + KEY_BYTES;
+    private static final int HEADER_BYTES = 3 * Long.BYTES + BLOCK_HASH_BYTES; // capacity, count, tombstones, best block
+    private static final byte EMPTY = 0;
+    private static final byte OCCUPIED = 1;
+    private static final byte DELETED = 2;
+    private static final double MAX_LOAD = 0.5;
+
+    private final Path directory;
+    private FileChannel table;
+    private long capacity;
+    private long count;
+    private long tombstones;
+    private byte[] bestBlockHash; // all zeros until the first batch
+
+    public FileUtxoStore(Path directory) throws IOException {
+        this(directory, UTXO_STORE_INITIAL_SLOTS);
+    }
+
+    public FileUtxoStore(Path directory, long initialSlots) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+
+        Path tablePath = directory.resolve(TABLE_FILE);
+        if (Files.exists(tablePath)) {
+            openTable(tablePath);
+        } else {
+            createTable(tablePath, initialSlots);
+            openTable(tablePath);
+        }
+
+        replayJournal();
+    }
+
+    @Override
+    public boolean contains(Xput output) throws IOException {
+        return findSlot(key(output)) >= 0;
+    }
+
+    @Override
+    public byte[] getBestBlockHash() {
+        return Arrays.equals(bestBlockHash, new byte[BLOCK_HASH_BYTES]) ? null : bestBlockHash.clone();
+    }
+
+    @Override
+    public void write(Collection<Xput> added, Collection<Xput> spent, byte[] bestBlockHash) throws IOException {
+        if (bestBlockHash.length != BLOCK_HASH_BYTES) {
+            throw new IllegalArgumentException("Block hash of " + bestBlockHash.length + " bytes.");
+        }
+
+        List<byte[]> addedKeys = keys(added);
+        List<byte[]> spentKeys = keys(spent);
+
+        Path journal = directory.resolve(JOURNAL_FILE);
+        writeJournal(journal, addedKeys, spentKeys, bestBlockHash);
+        apply(addedKeys, spentKeys, bestBlockHash);
+        Files.delete(journal);
+    }
+
+    public long size() {
+        return count;
+    }
+
+    @Override
+    public void close() throws IOException {
+        table.close();
+    }
+
+    private void apply(List<byte[]> addedKeys, List<byte[]> spentKeys, byte[] bestBlockHash) throws IOException {
+        ensureCapacity(count + tombstones + addedKeys.size());
+
+        for (byte[] key : spentKeys) {
+            long slot = findSlot(key);
+            if (slot >= 0) {
+                writeSlot(table, slot, DELETED, key);
+                count--;
+                tombstones++;
+            }
+        }
+        for (byte[] key : addedKeys) {
+            insert(key);
+        }
+
+        this.bestBlockHash = bestBlockHash.clone();
+        writeHeader();
+        table.force(false);
+    }
+
+    private long findSlot(byte[] key) throws IOException {
+        ByteBuffer slot = ByteBuffer.allocate(SLOT_BYTES);
+        for (long i = start(key, capacity), probes = 0; probes < capacity; i = (i + 1) % capacity, probes++) {
+            byte status = readSlot(table, i, slot);
+            if (status == EMPTY) {
+                return -1;
+            }
+            if (status == OCCUPIED && matches(slot, key)) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
+    private void insert(byte[] key) throws IOException {
+        ByteBuffer slot = ByteBuffer.allocate(SLOT_BYTES);
+        long firstDeleted = -1;
+        for (long i = start(key, capacity); ; i = (i + 1) % capacity) {
+            byte status = readSlot(table, i, slot);
+            if (status == OCCUPIED && matches(slot, key)) {
+                return;
+            }
+            if (status == DELETED && firstDeleted < 0) {
+                firstDeleted = i;
+            }
+            if (status == EMPTY) {
+                if (firstDeleted >= 0) {
+                    i = firstDeleted;
+                    tombstones--;
+                }
+                writeSlot(table, i, OCCUPIED, key);
+                count++;
+                return;
+            }
+        }
+    }
+
+    private void ensureCapacity(long slotsInUse) throws IOException {
+        if (slotsInUse <= capacity * MAX_LOAD) {
+            return;
+        }
+
+        long newCapacity = capacity;
+        while (count + (slotsInUse - count - tombstones) > newCapacity * MAX_LOAD) {
+            newCapacity *= 2;
+        }
+
+        // Rebuild into a new file, which also drops the tombstones
+        Path tablePath = directory.resolve(TABLE_FILE);
+        Path temporary = directory.resolve(TABLE_FILE + ".tmp");
+        createTable(temporary, newCapacity);
+        try (FileChannel rebuilt = FileChannel.open(temporary, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer slot = ByteBuffer.allocate(SLOT_BYTES);
+            ByteBuffer probe = ByteBuffer.allocate(SLOT_BYTES);
+            for (long i = 0; i < capacity; i++) {
+                if (readSlot(table, i, slot) != OCCUPIED) {
+                    continue;
+                }
+
+                byte[] key = Arrays.copyOfRange(slot.array(), 1, SLOT_BYTES);
+                long j = start(key, newCapacity);
+                while (readSlot(rebuilt, j, probe) != EMPTY) {
+                    j = (j + 1) % newCapacity;
+                }
+                writeSlot(rebuilt, j, OCCUPIED, key);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putLong(newCapacity).putLong(count).putLong(0L).put(bestBlockHash).flip();
+            writeFully(rebuilt, header, 0);
+            rebuilt.force(true);
+        }
+
+        table.close();
+        Files.move(temporary, tablePath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        openTable(tablePath);
+    }
+
+    private void createTable(Path path, long slots) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+              StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putLong(slots).putLong(0L).putLong(0L).put(new byte[BLOCK_HASH_BYTES]).flip();
+            writeFully(channel, header, 0);
+
+            // Extending the file fills every slot with zeros, which is EMPTY
+            writeFully(channel, ByteBuffer.allocate(1), HEADER_BYTES + slots * SLOT_BYTES - 1);
+            channel.force(true);
+        }
+    }
+
+    private void openTable(Path path) throws IOException {
+        table = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        readFully(table, header, 0);
+        header.flip();
+        capacity = header.getLong();
+        count = header.getLong();
+        tombstones = header.getLong();
+        bestBlockHash = new byte[BLOCK_HASH_BYTES];
+        header.get(bestBlockHash);
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putLong(capacity).putLong(count).putLong(tombstones).put(bestBlockHash).flip();
+        writeFully(table, header, 0);
+    }
+
+    private void writeJournal(Path journal, List<byte[]> addedKeys, List<byte[]> spentKeys, byte[] bestBlockHash)
+          throws IOException {
+        try (FileOutputStream file = new FileOutputStream(journal.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeInt(addedKeys.size());
+            out.writeInt(spentKeys.size());
+            for (byte[] key : addedKeys) {
+                out.write(key);
+            }
+            for (byte[] key : spentKeys) {
+                out.write(key);
+            }
+            out.write(bestBlockHash);
+            out.writeLong(JOURNAL_COMMIT);
+            out.flush();
+            file.getFD().sync();
+        }
+    }
+
+    private void replayJournal() throws IOException {
+        Path journal = directory.resolve(JOURNAL_FILE);
+        if (!Files.exists(journal)) {
+            return;
+        }
+
+        List<byte[]> addedKeys = new ArrayList<>();
+        List<byte[]> spentKeys = new ArrayList<>();
+        byte[] journaledBlockHash = new byte[BLOCK_HASH_BYTES];
+        boolean committed;
+        try (InputStream file = Files.newInputStream(journal);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(file))) {
+            int added = in.readInt();
+            int spent = in.readInt();
+            for (int i = 0; i < added + spent; i++) {
+                byte[] key = new byte[KEY_BYTES];
+                in.readFully(key);
+                (i < added ? addedKeys : spentKeys).add(key);
+            }
+            in.readFully(journaledBlockHash);
+            committed = in.readLong() == JOURNAL_COMMIT;
+        } catch (EOFException e) {
+            committed = false; // the batch was never applied
+        }
+
+        // Adding and removing keys is idempotent, so a partly applied batch can be applied again. The header
+        // is only written at the end of a batch, so it's recounted first.
+        if (committed) {
+            recount();
+            apply(addedKeys, spentKeys, journaledBlockHash);
+        }
+        Files.delete(journal);
+    }
+
+    private void recount() throws IOException {
+        ByteBuffer slot = ByteBuffer.allocate(SLOT_BYTES);
+        count = 0;
+        tombstones = 0;
+        for (long i = 0; i < capacity; i++) {
+            byte status = readSlot(table, i, slot);
+            if (status == OCCUPIED) {
+                count++;
+            } else if (status == DELETED) {
+                tombstones++;
+            }
+        }
+    }
+
+    private static long start(byte[] key, long capacity) {
+        return Math.floorMod(ByteBuffer.wrap(key).getLong(), capacity);
+    }
+
+    private static boolean matches(ByteBuffer slot, byte[] key) {
+        byte[] slotBytes = slot.array();
+        for (int i = 0; i < KEY_BYTES; i++) {
+            if (slotBytes[i + 1] != key[i]) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static byte readSlot(FileChannel channel, long slot, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        readFully(channel, buffer, HEADER_BYTES + slot * SLOT_BYTES);
+        return buffer.get(0);
+    }
+
+    private static void writeSlot(FileChannel channel, long slot, byte status, byte[] key) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SLOT_BYTES);
+        buffer.put(status).put(key).flip();
+        writeFully(channel, buffer, HEADER_BYTES + slot * SLOT_BYTES);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Truncated UTXO table at " + position + ".");
+            }
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private static List<byte[]> keys(Collection<Xput> outputs) {
+        List<byte[]> keys = new ArrayList<>(outputs.size());
+        for (Xput output : outputs) {
+            keys.add(key(output));
+        }
+
+        return keys;
+    }
+
+    private static byte[] key(Xput output) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            messageDigest.update(output.getAddress().getCashAddress().getBytes(StandardCharsets.UTF_8));
+            messageDigest.update((byte) 0);
+            messageDigest.update(output.getAddress().getPubKeyHash().getBytes(StandardCharsets.UTF_8));
+            messageDigest.update((byte) 0);
+            messageDigest.update(ByteBuffer.allocate(Long.BYTES).putLong(output.getAmountSats()).array());
+            return messageDigest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Failed to compute UTXO key.", e);
+        }
+    }
+}
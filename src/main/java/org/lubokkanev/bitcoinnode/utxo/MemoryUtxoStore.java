@@ -0,0 +1,29 @@
+package org.lubokkanev.bitcoinnode.utxo;
+
+import org.lubokkanev.bitcoinnode.transaction.Xput;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+public class MemoryUtxoStore implements UtxoStore {
+    private final Set<Xput> utxos = new HashSet<>();
+    private byte[] bestBlockHash;
+
+    @Override
+    public boolean contains(Xput output) {
+        return utxos.contains(output);
+    }
+
+    @Override
+    public byte[] getBestBlockHash() {
+        return bestBlockHash;
+    }
+
+    @Override
+    public void write(Collection<Xput> added, Collection<Xput> spent, byte[] bestBlockHash) {
+        utxos.removeAll(spent);
+        utxos.addAll(added);
+        this.bestBlockHash = bestBlockHash;
+    }
+}
@@ -0,0 +1,201 @@
+package org.lubokkanev.bitcoinnode.utxo;
+
+import org.lubokkanev.bitcoinnode.transaction.Transaction;
+import org.lubokkanev.bitcoinnode.transaction.Xput;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.lubokkanev.bitcoinnode.Constants.UTXO_CACHE_SIZE;
+import static org.lubokkanev.bitcoinnode.Constants.UTXO_FLUSH_BATCH_SIZE;
+
+/**
+ * Bounded write-back cache over a {@link UtxoStore}. Changes are kept as dirty entries and written to the store
+ * in batches, together with the hash of the block they bring the set up to. Outputs that are created and spent
+ * between two flushes never reach the store.
+ */
+public class UtxoCache {
+    private final UtxoStore store;
+    private final int capacity;
+    private final int flushBatchSize;
+    // Dirty entries are kept apart until the next flush, so eviction only ever walks clean ones
+    private final LinkedHashMap<Xput, Entry> cleanEntries = new LinkedHashMap<>(16, 0.75f, true); // LRU order
+    private final Map<Xput, Entry> dirtyEntries = new HashMap<>();
+    private byte[] bestBlockHash;
+    private boolean bestBlockChanged;
+
+    public UtxoCache(UtxoStore store) {
+        this(store, UTXO_CACHE_SIZE, UTXO_FLUSH_BATCH_SIZE);
+    }
+
+    public UtxoCache(UtxoStore store, int capacity, int flushBatchSize) {
+        this.store = store;
+        this.capacity = capacity;
+        this.flushBatchSize = flushBatchSize;
+    }
+
+    public boolean contains(Xput output) throws IOException {
+        Entry entry = get(output);
+        if (entry == null) {
+            entry = lookup(output);
+            evict();
+        }
+
+        return !entry.spent;
+    }
+
+    public void add(Xput output) throws IOException {
+        if (get(output) == null) {
+            lookup(output);
+        }
+
+        addLookedUp(output);
+        evict();
+    }
+
+    // Looks up all the outputs before changing anything, so that a failing store leaves the cache as it was
+    public void connect(Collection<Transaction> transactions, byte[] blockHash) throws IOException {
+        for (Transaction tx : transactions) {
+            for (Xput out : tx.getOutputs()) {
+                if (get(out) == null) {
+                    lookup(out);
+                }
+            }
+        }
+
+        for (Transaction tx : transactions) {
+            for (Xput in : tx.getInputs()) {
+                spend(in);
+            }
+            for (Xput out : tx.getOutputs()) {
+                addLookedUp(out);
+            }
+        }
+        setBestBlock(blockHash);
+        evict();
+    }
+
+    public void spend(Xput output) {
+        Entry entry = get(output);
+        if (entry == null) {
+            dirtyEntries.put(output, new Entry(true, true, false));
+        } else if (entry.fresh) {
+            dirtyEntries.remove(output); // the store doesn't have it
+        } else if (!entry.spent) {
+            entry.spent = true;
+            markDirty(output, entry);
+        }
+    }
+
+    public void setBestBlock(byte[] blockHash) {
+        if (!Arrays.equals(bestBlockHash, blockHash)) {
+            bestBlockHash = blockHash.clone();
+            bestBlockChanged = true;
+        }
+    }
+
+    public void flushIfNeeded() throws IOException {
+        if (dirtyEntries.size() >= flushBatchSize || size() > capacity) {
+            flush();
+        }
+    }
+
+    public void flush() throws IOException {
+        if (!bestBlockChanged && dirtyEntries.isEmpty()) {
+            return;
+        }
+        if (bestBlockHash == null) {
+            throw new IllegalStateException("There are changes, but no block they bring the UTXO set up to.");
+        }
+
+        List<Xput> added = new ArrayList<>();
+        List<Xput> spent = new ArrayList<>();
+        for (Map.Entry<Xput, Entry> e : dirtyEntries.entrySet()) {
+            (e.getValue().spent ? spent : added).add(e.getKey());
+        }
+
+        store.write(added, spent, bestBlockHash);
+        bestBlockChanged = false;
+
+        Iterator<Map.Entry<Xput, Entry>> it = dirtyEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Xput, Entry> e = it.next();
+            it.remove();
+            if (!e.getValue().spent) {
+                e.getValue().dirty = false;
+                e.getValue().fresh = false;
+                cleanEntries.put(e.getKey(), e.getValue());
+            }
+        }
+
+        evict();
+    }
+
+    public int size() {
+        return cleanEntries.size() + dirtyEntries.size();
+    }
+
+    public int getDirtyCount() {
+        return dirtyEntries.size();
+    }
+
+    private Entry get(Xput output) {
+        Entry entry = dirtyEntries.get(output);
+        return entry != null ? entry : cleanEntries.get(output);
+    }
+
+    // Caches whether the store has the output; an output the store doesn't have is kept as a clean spent entry
+    private Entry lookup(Xput output) throws IOException {
+        Entry entry = new Entry(!store.contains(output), false, false);
+        cleanEntries.put(output, entry);
+        return entry;
+    }
+
+    private void addLookedUp(Xput output) {
+        Entry entry = get(output);
+        if (entry == null || (entry.spent && !entry.dirty)) {
+            // Fresh only when known to be missing from the store. An entry can only be gone after the lookup
+            // if it was fresh and spent, in which case the store doesn't have it either.
+            cleanEntries.remove(output);
+            dirtyEntries.put(output, new Entry(false, true, true));
+        } else if (entry.spent) {
+            entry.spent = false; // the store still has it, the spend was never written
+        }
+    }
+
+    private void markDirty(Xput output, Entry entry) {
+        if (!entry.dirty) {
+            entry.dirty = true;
+            cleanEntries.remove(output);
+            dirtyEntries.put(output, entry);
+        }
+    }
+
+    private void evict() {
+        // Only clean entries can be dropped, dirty ones stay until the next flush
+        Iterator<Entry> it = cleanEntries.values().iterator();
+        while (size() > capacity && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static class Entry {
+        private boolean spent;
+        private boolean dirty;
+        private boolean fresh;
+
+        private Entry(boolean spent, boolean dirty, boolean fresh) {
+            this.spent = spent;
+            this.dirty = dirty;
+            this.fresh = fresh;
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package org.lubokkanev.bitcoinnode.utxo;
+
+import org.lubokkanev.bitcoinnode.transaction.Xput;
+
+import java.io.IOException;
+import java.util.Collection;
+
+public interface UtxoStore {
+    boolean contains(Xput output) throws IOException;
+
+    // Hash of the block the stored set is in sync with, null before the first write
+    byte[] getBestBlockHash() throws IOException;
+
+    void write(Collection<Xput> added, Collection<Xput> spent, byte[] bestBlockHash) throws IOException;
+}
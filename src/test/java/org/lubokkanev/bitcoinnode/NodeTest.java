@@ -2,19 +2,29 @@ package org.lubokkanev.bitcoinnode;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.lubokkanev.bitcoinnode.block.Block;
+import org.lubokkanev.bitcoinnode.daa.Asert;
+import org.lubokkanev.bitcoinnode.daa.Targets;
 import org.lubokkanev.bitcoinnode.transaction.Address;
 import org.lubokkanev.bitcoinnode.transaction.Transaction;
 import org.lubokkanev.bitcoinnode.transaction.Xput;
+import org.lubokkanev.bitcoinnode.utxo.FileUtxoStore;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.lubokkanev.bitcoinnode.Constants.ASERT_HALF_LIFE_SEC;
 import static org.lubokkanev.bitcoinnode.Constants.BITCOIN;
 import static org.lubokkanev.bitcoinnode.Constants.COINBASE_ADDRESS;
+import static org.lubokkanev.bitcoinnode.Constants.MAX_FUTURE_BLOCK_TIME_SEC;
+import static org.lubokkanev.bitcoinnode.Constants.TARGET_BLOCK_TIME_SEC;
 
 public class NodeTest {
     private final String AVAILABLE_INPUT = "available-input";
@@ -60,6 +70,7 @@ public class NodeTest {
     @Test
     public void receiveValidBlock() throws Exception {
         Block validBlock = new Block(node.getLatestBlock());
+        validBlock.findNonce();
         node.receiveBlock(validBlock);
         assertArrayEquals(node.getLatestBlock().getHash(), validBlock.getHash());
     }
@@ -87,8 +98,188 @@ public class NodeTest {
     }
 
     @Test
-    public void utxos() {
-        // add multiple blocks reusing Xputs
-        // verify the utxo is as expected
+    public void utxos() throws Exception {
+        List<Xput> inputs = new ArrayList<>();
+        inputs.add(new Xput(new Address(AVAILABLE_INPUT, ""), 50 * BITCOIN));
+        List<Xput> outputs = new ArrayList<>();
+        outputs.add(new Xput(new Address("test-output", ""), 50 * BITCOIN));
+        Block block = new Block(node.getLatestBlock());
+        block.addTransaction(new Transaction(inputs, outputs, "spend"));
+        block.findNonce();
+        node.receiveBlock(block);
+
+        Transaction doubleSpend = new Transaction(inputs, outputs, "double-spend");
+        assertThrows(Exception.class, () -> node.receiveTransaction(doubleSpend));
+
+        Transaction spendNewOutput = new Transaction(outputs, inputs, "spend-new-output");
+        assertDoesNotThrow(() -> node.receiveTransaction(spendNewOutput));
+    }
+
+    private Block spendingBlock(Block previous, Xput input, String outputAddress) throws Exception {
+        List<Xput> inputs = new ArrayList<>();
+        inputs.add(input);
+        List<Xput> outputs = new ArrayList<>();
+        outputs.add(new Xput(new Address(outputAddress, ""), input.getAmountSats()));
+        Block block = new Block(previous);
+        block.addTransaction(new Transaction(inputs, outputs, outputAddress));
+        block.findNonce();
+        return block;
+    }
+
+    @Test
+    public void spentOutputStaysSpentAfterReopeningStore(@TempDir Path directory) throws Exception {
+        Xput genesisOutput = new Xput(new Address(AVAILABLE_INPUT, ""), 50 * BITCOIN);
+
+        try (FileUtxoStore store = new FileUtxoStore(directory)) {
+            new Node(initialBlock, store).close();
+        }
+
+        Block block = spendingBlock(initialBlock, genesisOutput, "test-output");
+        try (FileUtxoStore store = new FileUtxoStore(directory)) {
+            Node reopened = new Node(initialBlock, store);
+            reopened.receiveBlock(block);
+            reopened.close();
+        }
+
+        for (int i = 0; i < 2; i++) {
+            try (FileUtxoStore store = new FileUtxoStore(directory)) {
+                new Node(block, store).close();
+                assertFalse(store.contains(genesisOutput));
+            }
+        }
+    }
+
+    @Test
+    public void storeOfAnotherChainIsRejected(@TempDir Path directory) throws Exception {
+        Xput genesisOutput = new Xput(new Address(AVAILABLE_INPUT, ""), 50 * BITCOIN);
+        Block block = spendingBlock(initialBlock, genesisOutput, "test-output");
+
+        try (FileUtxoStore store = new FileUtxoStore(directory)) {
+            Node first = new Node(initialBlock, store);
+            first.receiveBlock(block);
+            first.close();
+        }
+
+        try (FileUtxoStore store = new FileUtxoStore(directory)) {
+            assertThrows(Exception.class, () -> new Node(initialBlock, store));
+            assertFalse(store.contains(genesisOutput));
+        }
+    }
+
+    @Test
+    public void unflushedBlocksAreReconnectedAfterRestart(@TempDir Path directory) throws Exception {
+        Xput genesisOutput = new Xput(new Address(AVAILABLE_INPUT, ""), 50 * BITCOIN);
+        Block block = spendingBlock(initialBlock, genesisOutput, "test-output");
+
+        try (FileUtxoStore store = new FileUtxoStore(directory)) {
+            Node crashing = new Node(initialBlock, store);
+            crashing.close();
+            crashing.receiveBlock(block); // never flushed
+        }
+
+        try (FileUtxoStore store = new FileUtxoStore(directory)) {
+            Node restarted = new Node(block, store);
+            assertArrayEquals(block.getHash(), restarted.getLatestBlock().getHash());
+            assertThrows(Exception.class, () -> restarted.receiveBlock(spendingBlock(block, genesisOutput, "double-spend")));
+            restarted.close();
+            assertFalse(store.contains(genesisOutput));
+            assertTrue(store.contains(new Xput(new Address("test-output", ""), 50 * BITCOIN)));
+        }
+    }
+
+    @Test
+    public void outputSpentTwiceInOneBlockIsRejected() throws Exception {
+        Xput genesisOutput = new Xput(new Address(AVAILABLE_INPUT, ""), 50 * BITCOIN);
+        List<Xput> inputs = new ArrayList<>();
+        inputs.add(genesisOutput);
+        List<Xput> firstOutputs = new ArrayList<>();
+        firstOutputs.add(new Xput(new Address("s1", ""), 50 * BITCOIN));
+        List<Xput> secondOutputs = new ArrayList<>();
+        secondOutputs.add(new Xput(new Address("s2", ""), 50 * BITCOIN));
+
+        Block block = new Block(node.getLatestBlock());
+        block.addTransaction(new Transaction(inputs, firstOutputs, "s1"));
+        block.addTransaction(new Transaction(inputs, secondOutputs, "s2"));
+        block.findNonce();
+
+        assertThrows(Exception.class, () -> node.receiveBlock(block));
+        assertArrayEquals(initialBlock.getHash(), node.getLatestBlock().getHash());
+    }
+
+    @Test
+    public void blockEvictsConflictingMempoolTransactions() throws Exception {
+        List<Xput> inputs = new ArrayList<>();
+        inputs.add(new Xput(new Address(AVAILABLE_INPUT, ""), 50 * BITCOIN));
+        List<Xput> mempoolOutputs = new ArrayList<>();
+        mempoolOutputs.add(new Xput(new Address("mempool-output", ""), 50 * BITCOIN));
+        node.receiveTransaction(new Transaction(inputs, mempoolOutputs, "mempool"));
+
+        List<Xput> blockOutputs = new ArrayList<>();
+        blockOutputs.add(new Xput(new Address("block-output", ""), 50 * BITCOIN));
+        Block block = new Block(node.getLatestBlock());
+        block.addTransaction(new Transaction(inputs, blockOutputs, "block"));
+        block.findNonce();
+        node.receiveBlock(block);
+
+        assertTrue(node.getUnconfirmedTransactions().isEmpty());
+        assertDoesNotThrow(() -> node.mineBlock());
+    }
+
+    @Test
+    public void asertTargetRisesAfterLateBlock() throws Exception {
+        Block genesis = new Block(new Asert());
+        genesis.setTimestampSec(1_000_000L);
+        Node asertNode = new Node(genesis);
+
+        // far behind schedule, so the next target is easier than this block's
+        Block late = new Block(genesis);
+        late.setTimestampSec(1_000_000L + TARGET_BLOCK_TIME_SEC + ASERT_HALF_LIFE_SEC);
+        late.findNonce();
+        asertNode.receiveBlock(late);
+
+        Block next = new Block(late);
+        next.setTimestampSec(late.getTimestampSec() + TARGET_BLOCK_TIME_SEC);
+        next.findNonce();
+
+        assertTrue(next.getTarget().compareTo(late.getTarget()) > 0);
+        assertDoesNotThrow(() -> asertNode.receiveBlock(next));
+    }
+
+    @Test
+    public void receiveBlockWithoutProofOfWork() throws Exception {
+        List<Xput> inputs = new ArrayList<>();
+        inputs.add(new Xput(new Address(AVAILABLE_INPUT, ""), 50 * BITCOIN));
+        List<Xput> outputs = new ArrayList<>();
+        outputs.add(new Xput(new Address("test-output", ""), 50 * BITCOIN));
+
+        // an otherwise valid block, whose hash happens to miss the target
+        Block unmined;
+        int i = 0;
+        do {
+            unmined = new Block(node.getLatestBlock());
+            unmined.setTimestampSec(node.getLatestBlock().getTimestampSec() + TARGET_BLOCK_TIME_SEC);
+            unmined.addTransaction(new Transaction(inputs, outputs, "tx-" + i++));
+        } while (Targets.isBelow(unmined.getHash(), unmined.getTarget()));
+
+        Block block = unmined;
+        assertThrows(Exception.class, () -> node.receiveBlock(block));
+    }
+
+    @Test
+    public void blockTimeNotAfterMedianIsRejected() {
+        Block block = new Block(node.getLatestBlock());
+        block.setTimestampSec(node.getLatestBlock().getTimestampSec());
+        block.findNonce();
+
+        assertThrows(Exception.class, () -> node.receiveBlock(block));
+    }
+
+    @Test
+    public void blockTimeFarInFutureIsRejected() {
+        Block block = new Block(node.getLatestBlock());
+        block.setTimestampSec(System.currentTimeMillis() / 1000L + MAX_FUTURE_BLOCK_TIME_SEC + 60);
+        block.findNonce();
+
+        assertThrows(Exception.class, () -> node.receiveBlock(block));
     }
 }
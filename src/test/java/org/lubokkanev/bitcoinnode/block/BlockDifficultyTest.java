@@ -91,6 +91,18 @@ public class BlockDifficultyTest {
         // Not a retarget boundary yet, difficulty should equal previous
         assertEquals(b1.getDifficulty(), b2.getDifficulty());
     }
-}
 
+    @Test
+    public void deepChainDoesNotRecurse() {
+        Block prev = new Block();
+        long t = prev.getTimestampSec();
+        for (int i = 1; i < 100_000; i++) {
+            Block next = new Block(prev);
+            t += TARGET_BLOCK_TIME_SEC;
+            next.setTimestampSec(t);
+            prev = next;
+        }
 
+        assertTrue(prev.getDifficulty() >= 1);
+    }
+}
@@ -11,6 +11,7 @@ import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 
 public class BlockHashTest {
     private Transaction buildNonCoinbaseTransaction(String txHash) {
@@ -55,4 +56,28 @@ public class BlockHashTest {
 
         assertFalse(Arrays.equals(b1.getHash(), b2.getHash()));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void changesAfterMiningChangeHash() throws Exception {
+        Block genesis = new Block();
+        Block b = new Block(genesis);
+        b.findNonce();
+
+        byte[] mined = b.getHash();
+        b.addTransaction(buildNonCoinbaseTransaction("tx-1"));
+        byte[] withTransaction = b.getHash();
+        b.setTimestampSec(b.getTimestampSec() + 1);
+
+        assertFalse(Arrays.equals(mined, withTransaction));
+        assertFalse(Arrays.equals(withTransaction, b.getHash()));
+    }
+
+    @Test
+    public void blockCannotChangeOnceBuiltOn() {
+        Block genesis = new Block();
+        new Block(genesis);
+
+        assertThrows(IllegalStateException.class, () -> genesis.setTimestampSec(1));
+        assertThrows(IllegalStateException.class, genesis::findNonce);
+    }
+}
@@ -0,0 +1,69 @@
+package org.lubokkanev.bitcoinnode.daa;
+
+import org.junit.jupiter.api.Test;
+import org.lubokkanev.bitcoinnode.block.Block;
+
+import java.math.BigInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.lubokkanev.bitcoinnode.Constants.ASERT_HALF_LIFE_SEC;
+import static org.lubokkanev.bitcoinnode.Constants.TARGET_BLOCK_TIME_SEC;
+
+public class AsertTest {
+    private Block buildChain(int blocks, long solveTimeSec) {
+        Block prev = new Block(new Asert());
+        long t = 1_000_000L;
+        prev.setTimestampSec(t);
+
+        for (int i = 1; i < blocks; i++) {
+            Block next = new Block(prev);
+            t += solveTimeSec;
+            next.setTimestampSec(t);
+            prev = next;
+        }
+
+        return new Block(prev);
+    }
+
+    @Test
+    public void onScheduleKeepsAnchorTarget() {
+        Block block = buildChain(50, TARGET_BLOCK_TIME_SEC);
+        Block genesis = block;
+        while (genesis.getPrevious() != null) {
+            genesis = genesis.getPrevious();
+        }
+
+        assertEquals(genesis.getTarget(), block.getTarget());
+    }
+
+    @Test
+    public void oneHalfLifeBehindDoublesTarget() {
+        Block genesis = new Block(new Asert());
+        genesis.setTimestampSec(1_000_000L);
+        Block second = new Block(genesis);
+        second.setTimestampSec(1_000_000L + TARGET_BLOCK_TIME_SEC + ASERT_HALF_LIFE_SEC);
+
+        assertEquals(genesis.getTarget().shiftLeft(1), new Block(second).getTarget());
+    }
+
+    @Test
+    public void adjustsInSmallSteps() {
+        Block slow = buildChain(20, TARGET_BLOCK_TIME_SEC + 1);
+        Block fast = buildChain(20, TARGET_BLOCK_TIME_SEC - 1);
+        BigInteger onSchedule = buildChain(20, TARGET_BLOCK_TIME_SEC).getTarget();
+
+        assertTrue(slow.getTarget().compareTo(onSchedule) > 0);
+        assertTrue(fast.getTarget().compareTo(onSchedule) < 0);
+        // far less than the doubling or halving a whole difficulty bit would cause
+        assertTrue(slow.getTarget().compareTo(onSchedule.multiply(BigInteger.valueOf(11)).divide(BigInteger.TEN)) < 0);
+    }
+
+    @Test
+    public void minedHashIsBelowTarget() {
+        Block block = buildChain(5, TARGET_BLOCK_TIME_SEC * 3);
+        block.findNonce();
+
+        assertTrue(Targets.isBelow(block.getHash(), block.getTarget()));
+    }
+}
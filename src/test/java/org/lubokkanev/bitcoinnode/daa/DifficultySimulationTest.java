@@ -0,0 +1,42 @@
+package org.lubokkanev.bitcoinnode.daa;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.lubokkanev.bitcoinnode.Constants.TARGET_BLOCK_TIME_SEC;
+
+public class DifficultySimulationTest {
+    private static final long BLOCKS = 50_000L;
+
+    @Test
+    public void asertKeepsTargetBlockTime() {
+        double base = DifficultySimulation.getBaseHashrate();
+
+        DifficultySimulation.Result result = DifficultySimulation.run(new Asert(), height -> base, BLOCKS, 1L);
+
+        assertEquals(BLOCKS, result.getBlocks());
+        assertEquals(TARGET_BLOCK_TIME_SEC, result.getMeanBlockTimeSec(), TARGET_BLOCK_TIME_SEC * 0.05);
+    }
+
+    @Test
+    public void asertTracksHashrateGrowth() {
+        double base = DifficultySimulation.getBaseHashrate();
+        DifficultySimulation.HashrateModel growing = height -> base * Math.pow(2, height / 10_000.0);
+
+        DifficultySimulation.Result result = DifficultySimulation.run(new Asert(), growing, BLOCKS, 1L);
+
+        assertEquals(TARGET_BLOCK_TIME_SEC, result.getMeanBlockTimeSec(), TARGET_BLOCK_TIME_SEC * 0.1);
+    }
+
+    @Test
+    public void asertIsSteadierThanDiscreteRetarget() {
+        // Whole-bit steps overshoot in both directions, so the discrete retarget never settles on the target time
+        double base = DifficultySimulation.getBaseHashrate();
+
+        DifficultySimulation.Result discrete = DifficultySimulation.run(new DiscreteRetarget(), height -> base, BLOCKS, 1L);
+        DifficultySimulation.Result asert = DifficultySimulation.run(new Asert(), height -> base, BLOCKS, 1L);
+
+        assertTrue(asert.getScheduleErrorRms() < discrete.getScheduleErrorRms());
+    }
+}
@@ -0,0 +1,169 @@
+package org.lubokkanev.bitcoinnode.mempool;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lubokkanev.bitcoinnode.transaction.Address;
+import org.lubokkanev.bitcoinnode.transaction.Transaction;
+import org.lubokkanev.bitcoinnode.transaction.Xput;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.lubokkanev.bitcoinnode.Constants.MAX_REPLACED_TRANSACTIONS;
+
+public class MempoolTest {
+    private final Xput FUNDING_OUTPUT = new Xput(new Address("funding", ""), 1000);
+    private Mempool mempool;
+
+    @BeforeEach
+    public void setup() {
+        mempool = new Mempool();
+    }
+
+    private Transaction spend(Xput input, String outputAddress, long outputSats, String hash) {
+        List<Xput> inputs = new ArrayList<>();
+        inputs.add(input);
+        List<Xput> outputs = new ArrayList<>();
+        outputs.add(new Xput(new Address(outputAddress, ""), outputSats));
+        return new Transaction(inputs, outputs, hash);
+    }
+
+    @Test
+    public void duplicateTransactionIsIgnored() throws Exception {
+        Transaction tx = spend(FUNDING_OUTPUT, "a", 900, "tx");
+        mempool.addTransaction(tx);
+        mempool.addTransaction(tx);
+
+        assertEquals(1, mempool.getTransactions().size());
+    }
+
+    @Test
+    public void higherFeeReplacesConflict() throws Exception {
+        Transaction original = spend(FUNDING_OUTPUT, "a", 900, "original");
+        Transaction replacement = spend(FUNDING_OUTPUT, "a", 800, "replacement");
+
+        mempool.addTransaction(original);
+        mempool.addTransaction(replacement);
+
+        assertFalse(mempool.getTransactions().contains(original));
+        assertTrue(mempool.getTransactions().contains(replacement));
+    }
+
+    @Test
+    public void notHigherFeeIsRejected() throws Exception {
+        Transaction original = spend(FUNDING_OUTPUT, "a", 900, "original");
+        Transaction sameFee = spend(FUNDING_OUTPUT, "b", 900, "same-fee");
+
+        mempool.addTransaction(original);
+
+        assertThrows(Mempool.MempoolAcceptanceException.class, () -> mempool.addTransaction(sameFee));
+        assertTrue(mempool.getTransactions().contains(original));
+    }
+
+    @Test
+    public void lowerFeeRateIsRejected() throws Exception {
+        Transaction original = spend(FUNDING_OUTPUT, "a", 900, "original");
+
+        // 120 sats fee over 1 input and 4 outputs is a lower rate than 100 sats over 1 input and 1 output
+        List<Xput> inputs = new ArrayList<>();
+        inputs.add(FUNDING_OUTPUT);
+        List<Xput> outputs = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            outputs.add(new Xput(new Address("out-" + i, ""), 220));
+        }
+        Transaction largeReplacement = new Transaction(inputs, outputs, "large-replacement");
+
+        mempool.addTransaction(original);
+
+        assertThrows(Mempool.MempoolAcceptanceException.class, () -> mempool.addTransaction(largeReplacement));
+        assertTrue(mempool.getTransactions().contains(original));
+    }
+
+    @Test
+    public void replacementEvictsDescendants() throws Exception {
+        Transaction parent = spend(FUNDING_OUTPUT, "a", 900, "parent");
+        Transaction child = spend(parent.getOutputs().get(0), "b", 850, "child");
+        Transaction replacement = spend(FUNDING_OUTPUT, "c", 700, "replacement");
+
+        mempool.addTransaction(parent);
+        mempool.addTransaction(child);
+        mempool.addTransaction(replacement);
+
+        assertEquals(1, mempool.getTransactions().size());
+        assertTrue(mempool.getTransactions().contains(replacement));
+    }
+
+    @Test
+    public void replacementMustPayForDescendants() throws Exception {
+        Transaction parent = spend(FUNDING_OUTPUT, "a", 900, "parent");
+        Transaction child = spend(parent.getOutputs().get(0), "b", 500, "child");
+        Transaction replacement = spend(FUNDING_OUTPUT, "c", 700, "replacement");
+
+        mempool.addTransaction(parent);
+        mempool.addTransaction(child);
+
+        // 300 sats is higher than the parent's 100, but not than parent + child (100 + 400)
+        assertThrows(Mempool.MempoolAcceptanceException.class, () -> mempool.addTransaction(replacement));
+        assertEquals(2, mempool.getTransactions().size());
+    }
+
+    @Test
+    public void replacementSpendingReplacedOutputIsRejected() throws Exception {
+        Transaction parent = spend(FUNDING_OUTPUT, "a", 900, "parent");
+
+        // spends both the funding output (conflicting with the parent) and the parent's own output
+        List<Xput> inputs = new ArrayList<>();
+        inputs.add(FUNDING_OUTPUT);
+        inputs.add(parent.getOutputs().get(0));
+        List<Xput> outputs = new ArrayList<>();
+        outputs.add(new Xput(new Address("b", ""), 100));
+        Transaction replacement = new Transaction(inputs, outputs, "replacement");
+
+        mempool.addTransaction(parent);
+
+        assertThrows(Mempool.MempoolAcceptanceException.class, () -> mempool.addTransaction(replacement));
+        assertTrue(mempool.getTransactions().contains(parent));
+        assertFalse(mempool.getTransactions().contains(replacement));
+    }
+
+    @Test
+    public void negativeFeeIsRejected() {
+        Transaction tx = spend(FUNDING_OUTPUT, "a", 1100, "tx");
+
+        assertThrows(Mempool.MempoolAcceptanceException.class, () -> mempool.addTransaction(tx));
+        assertTrue(mempool.getTransactions().isEmpty());
+    }
+
+    @Test
+    public void replacementEvictingTooManyTransactionsIsRejected() throws Exception {
+        Transaction parent = spend(FUNDING_OUTPUT, "a", 999, "parent");
+        mempool.addTransaction(parent);
+        Xput tip = parent.getOutputs().get(0);
+        for (int i = 0; i < MAX_REPLACED_TRANSACTIONS; i++) {
+            Transaction child = spend(tip, "child-" + i, tip.getAmountSats(), "child-" + i);
+            mempool.addTransaction(child);
+            tip = child.getOutputs().get(0);
+        }
+        Transaction replacement = spend(FUNDING_OUTPUT, "b", 0, "replacement");
+
+        assertThrows(Mempool.MempoolAcceptanceException.class, () -> mempool.addTransaction(replacement));
+        assertEquals(MAX_REPLACED_TRANSACTIONS + 1, mempool.getTransactions().size());
+    }
+
+    @Test
+    public void confirmedTransactionEvictsConflictsAndTheirDescendants() throws Exception {
+        Transaction parent = spend(FUNDING_OUTPUT, "a", 900, "parent");
+        Transaction child = spend(parent.getOutputs().get(0), "b", 850, "child");
+        Transaction confirmed = spend(FUNDING_OUTPUT, "c", 990, "confirmed");
+
+        mempool.addTransaction(parent);
+        mempool.addTransaction(child);
+        mempool.removeConfirmedTransaction(confirmed);
+
+        assertTrue(mempool.getTransactions().isEmpty());
+    }
+}
@@ -0,0 +1,279 @@
+package org.lubokkanev.bitcoinnode.network;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.lubokkanev.bitcoinnode.Constants.MAX_MESSAGE_SIZE_BYTES;
+import static org.lubokkanev.bitcoinnode.Constants.MAX_PEER_WRITE_QUEUE_BYTES;
+import static org.lubokkanev.bitcoinnode.Constants.READ_CHUNK_BYTES;
+
+public class PeerNetworkTest {
+    private static final int PEERS = 200;
+    private static final int MESSAGES_PER_PEER = 5;
+    private static final int MANY_PEERS = 5000; // two file descriptors each, the client and the accepted side
+
+    private final Map<Peer, List<String>> received = new ConcurrentHashMap<>();
+    private CountDownLatch receivedLatch;
+    private PeerNetwork network;
+    private InetSocketAddress address;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        receivedLatch = new CountDownLatch(PEERS * MESSAGES_PER_PEER);
+        network = new PeerNetwork((peer, message) -> {
+            received.computeIfAbsent(peer, p -> Collections.synchronizedList(new ArrayList<>()))
+                  .add(new String(message, StandardCharsets.UTF_8));
+            receivedLatch.countDown();
+        }, 2, 16);
+        address = network.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+    }
+
+    @AfterEach
+    public void tearDown() throws Exception {
+        network.close();
+    }
+
+    private static void writeFrame(DataOutputStream out, byte[] message) throws Exception {
+        out.writeInt(message.length);
+        out.write(message);
+    }
+
+    private void awaitPeerCount(PeerNetwork network, int count) throws Exception {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (network.getPeerCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, network.getPeerCount());
+    }
+
+    @Test
+    public void manyPeersMessagesArriveInOrder() throws Exception {
+        List<Socket> sockets = new ArrayList<>();
+        try {
+            for (int i = 0; i < PEERS; i++) {
+                sockets.add(new Socket(address.getAddress(), address.getPort()));
+            }
+            for (int i = 0; i < PEERS; i++) {
+                DataOutputStream out = new DataOutputStream(sockets.get(i).getOutputStream());
+                for (int j = 0; j < MESSAGES_PER_PEER; j++) {
+                    writeFrame(out, (i + "-" + j).getBytes(StandardCharsets.UTF_8));
+                }
+                out.flush();
+            }
+
+            assertTrue(receivedLatch.await(10, TimeUnit.SECONDS));
+            assertEquals(PEERS, network.getPeerCount());
+            assertEquals(PEERS, received.size());
+            for (List<String> messages : received.values()) {
+                String prefix = messages.get(0).split("-")[0];
+                for (int j = 0; j < MESSAGES_PER_PEER; j++) {
+                    assertEquals(prefix + "-" + j, messages.get(j));
+                }
+            }
+        } finally {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void broadcastReachesConnectedPeers() throws Exception {
+        try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+            awaitPeerCount(network, 1);
+
+            byte[] message = "block".getBytes(StandardCharsets.UTF_8);
+            network.broadcast(message);
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] frame = new byte[in.readInt()];
+            in.readFully(frame);
+            assertArrayEquals(message, frame);
+        }
+    }
+
+    @Test
+    public void oversizedMessageDisconnectsPeer() throws Exception {
+        try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+            awaitPeerCount(network, 1);
+
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(MAX_MESSAGE_SIZE_BYTES + 1);
+            out.flush();
+
+            awaitPeerCount(network, 0);
+        }
+    }
+
+    @Test
+    public void connectsToOtherNetwork() throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        try (PeerNetwork other = new PeerNetwork((peer, message) -> latch.countDown())) {
+            Peer peer = other.connect(address);
+            awaitPeerCount(network, 1);
+
+            network.broadcast("tx".getBytes(StandardCharsets.UTF_8));
+
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertEquals(address, peer.getRemoteAddress());
+        }
+    }
+
+    @Test
+    public void trickledMessageLargerThanReadChunkArrivesIntact() throws Exception {
+        byte[] message = new byte[READ_CHUNK_BYTES * 5 + 3];
+        for (int i = 0; i < message.length; i++) {
+            message[i] = (byte) i;
+        }
+        byte[][] handled = new byte[1][];
+        CountDownLatch latch = new CountDownLatch(1);
+
+        try (PeerNetwork receiver = new PeerNetwork((peer, m) -> {
+            handled[0] = m;
+            latch.countDown();
+        })) {
+            InetSocketAddress receiverAddress = receiver.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (Socket socket = new Socket(receiverAddress.getAddress(), receiverAddress.getPort())) {
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                out.writeInt(message.length);
+                for (int offset = 0; offset < message.length; offset += 1000) {
+                    out.write(message, offset, Math.min(1000, message.length - offset));
+                    out.flush();
+                }
+
+                assertTrue(latch.await(5, TimeUnit.SECONDS));
+                assertArrayEquals(message, handled[0]);
+            }
+        }
+    }
+
+    @Test
+    public void peerThatDoesNotReadIsDisconnected() throws Exception {
+        try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+            awaitPeerCount(network, 1);
+
+            byte[] message = new byte[1024 * 1024];
+            for (long sent = 0; sent <= 4 * MAX_PEER_WRITE_QUEUE_BYTES && network.getPeerCount() > 0; sent += message.length) {
+                network.broadcast(message);
+            }
+
+            awaitPeerCount(network, 0);
+        }
+    }
+
+    @Test
+    public void thousandsOfPeersStayConnected() throws Exception {
+        AtomicInteger handled = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(MANY_PEERS);
+        List<Socket> sockets = new ArrayList<>();
+        try (PeerNetwork receiver = new PeerNetwork((peer, m) -> {
+            handled.incrementAndGet();
+            latch.countDown();
+        })) {
+            InetSocketAddress receiverAddress = receiver.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try {
+                for (int i = 0; i < MANY_PEERS; i++) {
+                    sockets.add(new Socket(receiverAddress.getAddress(), receiverAddress.getPort()));
+                }
+                for (Socket socket : sockets) {
+                    DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                    writeFrame(out, "ping".getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                }
+
+                assertTrue(latch.await(30, TimeUnit.SECONDS));
+                assertEquals(MANY_PEERS, handled.get());
+                assertEquals(MANY_PEERS, receiver.getPeerCount());
+            } finally {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    @Test
+    public void peersOverTheLimitAreRefused() throws Exception {
+        try (PeerNetwork limited = new PeerNetwork((peer, m) -> { }, 1, 16, 2, MAX_MESSAGE_SIZE_BYTES)) {
+            InetSocketAddress limitedAddress = limited.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (Socket first = new Socket(limitedAddress.getAddress(), limitedAddress.getPort());
+                 Socket second = new Socket(limitedAddress.getAddress(), limitedAddress.getPort());
+                 Socket third = new Socket(limitedAddress.getAddress(), limitedAddress.getPort())) {
+                third.setSoTimeout(5000);
+
+                assertEquals(-1, third.getInputStream().read());
+                assertEquals(2, limited.getPeerCount());
+            }
+        }
+    }
+
+    @Test
+    public void messageWaitsUntilTheInboundBudgetFreesUp() throws Exception {
+        CountDownLatch smallHandling = new CountDownLatch(1);
+        CountDownLatch releaseSmall = new CountDownLatch(1);
+        CountDownLatch largeHandled = new CountDownLatch(1);
+        byte[][] handled = new byte[1][];
+        byte[] large = new byte[MAX_MESSAGE_SIZE_BYTES];
+        for (int i = 0; i < large.length; i += 4096) {
+            large[i] = (byte) i;
+        }
+
+        // The budget fits one message of the maximum size, the small one has to be handled first
+        try (PeerNetwork receiver = new PeerNetwork((peer, m) -> {
+            if (m.length == 1) {
+                smallHandling.countDown();
+                releaseSmall.await();
+            } else {
+                handled[0] = m;
+                largeHandled.countDown();
+            }
+        }, 2, 16, 16, MAX_MESSAGE_SIZE_BYTES)) {
+            InetSocketAddress receiverAddress = receiver.listen(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (Socket small = new Socket(receiverAddress.getAddress(), receiverAddress.getPort());
+                 Socket big = new Socket(receiverAddress.getAddress(), receiverAddress.getPort())) {
+                DataOutputStream smallOut = new DataOutputStream(small.getOutputStream());
+                writeFrame(smallOut, new byte[1]);
+                smallOut.flush();
+                assertTrue(smallHandling.await(5, TimeUnit.SECONDS));
+
+                // Written from another thread, the receiver stops reading once the socket buffers fill up
+                Thread writer = new Thread(() -> {
+                    try {
+                        DataOutputStream bigOut = new DataOutputStream(big.getOutputStream());
+                        writeFrame(bigOut, large);
+                        bigOut.flush();
+                    } catch (Exception e) {
+                        // the assertions below fail
+                    }
+                });
+                writer.start();
+
+                assertFalse(largeHandled.await(500, TimeUnit.MILLISECONDS));
+                releaseSmall.countDown();
+                assertTrue(largeHandled.await(10, TimeUnit.SECONDS));
+                assertArrayEquals(large, handled[0]);
+                writer.join();
+            }
+        }
+    }
+}
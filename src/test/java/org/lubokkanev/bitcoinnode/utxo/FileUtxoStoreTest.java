@@ -0,0 +1,160 @@
+package org.lubokkanev.bitcoinnode.utxo;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.lubokkanev.bitcoinnode.transaction.Address;
+import org.lubokkanev.bitcoinnode.transaction.Xput;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FileUtxoStoreTest {
+    private static final byte[] BLOCK_HASH = new byte[32];
+    private static final byte[] NEXT_BLOCK_HASH = new byte[32];
+
+    static {
+        BLOCK_HASH[0] = 1;
+        NEXT_BLOCK_HASH[0] = 2;
+    }
+
+    @TempDir
+    Path directory;
+
+    @Test
+    public void writesAreVisibleAfterReopening() throws Exception {
+        List<Xput> outputs = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            outputs.add(new Xput(new Address("addr-" + i, ""), i));
+        }
+
+        try (FileUtxoStore store = new FileUtxoStore(directory, 8)) {
+            store.write(outputs, Collections.emptyList(), BLOCK_HASH);
+        }
+
+        try (FileUtxoStore reopened = new FileUtxoStore(directory, 8)) {
+            assertEquals(outputs.size(), reopened.size());
+            for (Xput output : outputs) {
+                assertTrue(reopened.contains(output));
+            }
+            assertFalse(reopened.contains(new Xput(new Address("addr-0", ""), 1)));
+        }
+    }
+
+    @Test
+    public void spentOutputsAreRemoved() throws Exception {
+        Xput kept = new Xput(new Address("kept", ""), 1);
+        Xput spent = new Xput(new Address("", "spent-pkh"), 2);
+        List<Xput> added = new ArrayList<>();
+        added.add(kept);
+        added.add(spent);
+
+        try (FileUtxoStore store = new FileUtxoStore(directory, 4)) {
+            store.write(added, Collections.emptyList(), BLOCK_HASH);
+            store.write(Collections.emptyList(), Collections.singletonList(spent), BLOCK_HASH);
+
+            assertTrue(store.contains(kept));
+            assertFalse(store.contains(spent));
+            assertEquals(1, store.size());
+        }
+    }
+
+    @Test
+    public void committedJournalIsReplayedOnOpen() throws Exception {
+        Xput output = new Xput(new Address("spent", ""), 1);
+        try (FileUtxoStore store = new FileUtxoStore(directory, 8)) {
+            store.write(Collections.singletonList(output), Collections.emptyList(), BLOCK_HASH);
+        }
+
+        // the node stopped after journaling a batch, but before applying it
+        Files.write(directory.resolve("utxo.journal"), journalOf(output, NEXT_BLOCK_HASH));
+
+        try (FileUtxoStore reopened = new FileUtxoStore(directory, 8)) {
+            assertFalse(reopened.contains(output));
+            assertEquals(0, reopened.size());
+            assertArrayEquals(NEXT_BLOCK_HASH, reopened.getBestBlockHash());
+        }
+        assertFalse(Files.exists(directory.resolve("utxo.journal")));
+    }
+
+    @Test
+    public void tableGrowsPastInitialSlots() throws Exception {
+        List<Xput> outputs = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            outputs.add(new Xput(new Address("addr-" + i, ""), i));
+        }
+
+        try (FileUtxoStore store = new FileUtxoStore(directory, 4)) {
+            for (int i = 0; i < outputs.size(); i += 100) {
+                store.write(outputs.subList(i, i + 100), Collections.emptyList(), BLOCK_HASH);
+            }
+            store.write(Collections.emptyList(), outputs.subList(0, 500), BLOCK_HASH);
+
+            assertEquals(500, store.size());
+            for (int i = 0; i < outputs.size(); i++) {
+                assertEquals(i >= 500, store.contains(outputs.get(i)));
+            }
+        }
+    }
+
+    @Test
+    public void uncommittedJournalIsDiscarded() throws Exception {
+        Xput output = new Xput(new Address("kept", ""), 1);
+        try (FileUtxoStore store = new FileUtxoStore(directory, 8)) {
+            store.write(Collections.singletonList(output), Collections.emptyList(), BLOCK_HASH);
+        }
+
+        byte[] journal = journalOf(output, NEXT_BLOCK_HASH);
+        Files.write(directory.resolve("utxo.journal"), Arrays.copyOf(journal, journal.length - Long.BYTES));
+
+        try (FileUtxoStore reopened = new FileUtxoStore(directory, 8)) {
+            assertTrue(reopened.contains(output));
+            assertArrayEquals(BLOCK_HASH, reopened.getBestBlockHash());
+        }
+    }
+
+    @Test
+    public void bestBlockIsKeptAcrossGrowthAndReopening() throws Exception {
+        List<Xput> outputs = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            outputs.add(new Xput(new Address("addr-" + i, ""), i));
+        }
+
+        try (FileUtxoStore store = new FileUtxoStore(directory, 4)) {
+            assertNull(store.getBestBlockHash());
+            store.write(outputs, Collections.emptyList(), BLOCK_HASH);
+            store.write(Collections.emptyList(), Collections.emptyList(), NEXT_BLOCK_HASH);
+        }
+
+        try (FileUtxoStore reopened = new FileUtxoStore(directory, 4)) {
+            assertArrayEquals(NEXT_BLOCK_HASH, reopened.getBestBlockHash());
+            assertEquals(outputs.size(), reopened.size());
+        }
+    }
+
+    // Journal format: added count, spent count, SHA-256 keys, best block hash, commit marker
+    private static byte[] journalOf(Xput spent, byte[] blockHash) throws Exception {
+        MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+        messageDigest.update(spent.getAddress().getCashAddress().getBytes(StandardCharsets.UTF_8));
+        messageDigest.update((byte) 0);
+        messageDigest.update(spent.getAddress().getPubKeyHash().getBytes(StandardCharsets.UTF_8));
+        messageDigest.update((byte) 0);
+        messageDigest.update(ByteBuffer.allocate(Long.BYTES).putLong(spent.getAmountSats()).array());
+
+        ByteBuffer journal = ByteBuffer.allocate(2 * Integer.BYTES + 32 + 32 + Long.BYTES);
+        journal.putInt(0).putInt(1).put(messageDigest.digest()).put(blockHash).putLong(0x5554584f4a524e4cL);
+        return journal.array();
+    }
+}
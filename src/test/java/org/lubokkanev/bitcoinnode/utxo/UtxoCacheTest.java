@@ -0,0 +1,213 @@
+package org.lubokkanev.bitcoinnode.utxo;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.lubokkanev.bitcoinnode.transaction.Address;
+import org.lubokkanev.bitcoinnode.transaction.Transaction;
+import org.lubokkanev.bitcoinnode.transaction.Xput;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class UtxoCacheTest {
+    private static final byte[] BLOCK_HASH = new byte[32];
+    private final List<Xput> writtenAdded = new ArrayList<>();
+    private final List<Xput> writtenSpent = new ArrayList<>();
+    private int lookups;
+    private boolean failing;
+    private MemoryUtxoStore memoryStore;
+    private UtxoCache cache;
+
+    @BeforeEach
+    public void setup() {
+        memoryStore = new MemoryUtxoStore();
+        UtxoStore recordingStore = new UtxoStore() {
+            @Override
+            public boolean contains(Xput output) throws IOException {
+                if (failing) {
+                    throw new IOException("Store failure.");
+                }
+                lookups++;
+                return memoryStore.contains(output);
+            }
+
+            @Override
+            public byte[] getBestBlockHash() {
+                return memoryStore.getBestBlockHash();
+            }
+
+            @Override
+            public void write(Collection<Xput> added, Collection<Xput> spent, byte[] bestBlockHash) {
+                writtenAdded.addAll(added);
+                writtenSpent.addAll(spent);
+                memoryStore.write(added, spent, bestBlockHash);
+            }
+        };
+        cache = new UtxoCache(recordingStore, 2, 3);
+        cache.setBestBlock(BLOCK_HASH);
+    }
+
+    private static Xput output(String address) {
+        return new Xput(new Address(address, ""), 100);
+    }
+
+    @Test
+    public void createdAndSpentBeforeFlushNeverReachesStore() throws Exception {
+        cache.add(output("a"));
+        cache.spend(output("a"));
+        cache.flush();
+
+        assertTrue(writtenAdded.isEmpty());
+        assertTrue(writtenSpent.isEmpty());
+        assertFalse(cache.contains(output("a")));
+    }
+
+    @Test
+    public void flushWritesBatchAndKeepsHits() throws Exception {
+        cache.add(output("a"));
+        cache.add(output("b"));
+        cache.flush();
+        int lookupsBeforeHit = lookups;
+
+        assertEquals(2, writtenAdded.size());
+        assertEquals(0, cache.getDirtyCount());
+        assertTrue(cache.contains(output("a")));
+        assertEquals(lookupsBeforeHit, lookups);
+    }
+
+    @Test
+    public void spendingFlushedOutputIsWrittenAsSpent() throws Exception {
+        cache.add(output("a"));
+        cache.flush();
+        cache.spend(output("a"));
+        int lookupsBeforeHit = lookups;
+
+        assertFalse(cache.contains(output("a")));
+        assertEquals(lookupsBeforeHit, lookups);
+
+        cache.flush();
+        assertEquals(1, writtenSpent.size());
+        assertFalse(cache.contains(output("a")));
+    }
+
+    @Test
+    public void missGoesToStoreAndEvictsCleanEntries() throws Exception {
+        cache.add(output("a"));
+        cache.add(output("b"));
+        cache.add(output("c"));
+        cache.flush();
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.contains(output("a")));
+        assertTrue(cache.contains(output("b")));
+        assertTrue(cache.contains(output("c")));
+        assertEquals(2, cache.size());
+        assertTrue(lookups > 0);
+    }
+
+    @Test
+    public void flushIfNeededWaitsForBatch() throws Exception {
+        cache.add(output("a"));
+        cache.add(output("b"));
+        cache.flushIfNeeded();
+        assertTrue(writtenAdded.isEmpty());
+
+        cache.add(output("c"));
+        cache.flushIfNeeded();
+        assertEquals(3, writtenAdded.size());
+    }
+
+    @Test
+    public void addingOutputAlreadyInStoreIsNotFresh() throws Exception {
+        cache.add(output("a"));
+        cache.flush();
+
+        // a new cache over the same store, like a node restarting and rescanning its chain
+        cache = new UtxoCache(new UtxoStore() {
+            private final MemoryUtxoStore memoryStore = new MemoryUtxoStore();
+
+            {
+                memoryStore.write(Collections.singletonList(output("a")), Collections.emptyList(), BLOCK_HASH);
+            }
+
+            @Override
+            public boolean contains(Xput output) {
+                return memoryStore.contains(output);
+            }
+
+            @Override
+            public byte[] getBestBlockHash() {
+                return memoryStore.getBestBlockHash();
+            }
+
+            @Override
+            public void write(Collection<Xput> added, Collection<Xput> spent, byte[] bestBlockHash) {
+                writtenSpent.addAll(spent);
+                memoryStore.write(added, spent, bestBlockHash);
+            }
+        }, 2, 3);
+        cache.setBestBlock(BLOCK_HASH);
+        cache.add(output("a"));
+        cache.spend(output("a"));
+        cache.flush();
+
+        assertEquals(1, writtenSpent.size());
+        assertFalse(cache.contains(output("a")));
+    }
+
+    @Test
+    public void failedConnectLeavesCacheUntouched() throws Exception {
+        List<Xput> inputs = new ArrayList<>();
+        inputs.add(output("a"));
+        List<Xput> outputs = new ArrayList<>();
+        outputs.add(output("b"));
+        Transaction tx = new Transaction(inputs, outputs, "tx");
+
+        cache.add(output("a"));
+        failing = true;
+
+        assertThrows(IOException.class, () -> cache.connect(Collections.singletonList(tx), BLOCK_HASH));
+        assertTrue(cache.contains(output("a")));
+        assertEquals(1, cache.getDirtyCount());
+    }
+
+    @Test
+    public void dirtyEntriesAreNotEvictedBeforeCleanOnes() throws Exception {
+        cache = new UtxoCache(new MemoryUtxoStore(), 2, 100);
+        cache.setBestBlock(BLOCK_HASH);
+        cache.add(output("clean"));
+        cache.flush();
+        cache.add(output("a"));
+        cache.add(output("b"));
+
+        assertEquals(2, cache.size());
+        assertEquals(2, cache.getDirtyCount());
+
+        // the misses are kept only while there's room, the dirty entries stay
+        assertFalse(cache.contains(output("c")));
+        assertEquals(2, cache.size());
+        assertTrue(cache.contains(output("a")));
+        assertTrue(cache.contains(output("clean")));
+    }
+
+    @Test
+    public void flushWritesBestBlockWithoutChanges() throws Exception {
+        byte[] nextBlockHash = new byte[32];
+        nextBlockHash[0] = 1;
+        cache.setBestBlock(nextBlockHash);
+        cache.flush();
+
+        assertArrayEquals(nextBlockHash, memoryStore.getBestBlockHash());
+        assertTrue(writtenAdded.isEmpty());
+        assertTrue(writtenSpent.isEmpty());
+    }
+}